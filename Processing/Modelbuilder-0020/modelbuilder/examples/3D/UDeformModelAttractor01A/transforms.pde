@@ -17,14 +17,14 @@ public void attractor() {
   UTransformAttractor def=new UTransformAttractor();
 
   def.addAttractor(attractorPos, radius, force);
-  def.transform(geo.vert);
+  def.transform(geo);
 }
 
 public void repulsor() {
   UTransformAttractor def=new UTransformAttractor();
 
   def.addRepulsor(attractorPos, radius, force);
-  def.transform(geo.vert);
+  def.transform(geo);
 }
 
 public void setAttractorPosition() {
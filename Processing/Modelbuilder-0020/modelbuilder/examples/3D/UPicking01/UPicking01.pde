@@ -0,0 +1,77 @@
+/**
+ * Picks the face under the mouse using UBVH. The ray through the 
+ * mouse position is calculated from the current camera and UNav3D 
+ * transforms, so pick() must be called after nav.doTransforms(). 
+ * Press space to rebuild the model, 'r' to rotate it (the BVH is 
+ * refitted instead of rebuilt).
+ */
+
+import unlekker.util.*;
+import unlekker.modelbuilder.*;
+
+UNav3D nav;
+UGeometry model;
+UVec3 hit=new UVec3();
+int picked=-1;
+
+void setup() {
+  size(600,600, P3D);
+
+  nav=new UNav3D(this);
+  nav.trans.set(width/2,height/2,0);
+  
+  build();
+}
+
+void draw() {
+  background(100);
+  lights();
+
+  nav.doTransforms();
+
+  long t=System.nanoTime();
+  picked=model.getBVH().pick(g, mouseX, mouseY, hit);
+  t=System.nanoTime()-t;
+  
+  noStroke();
+  fill(255,100,0);
+  model.draw(this);
+
+  if(picked>-1) {
+    fill(0,200,255);
+    model.face[picked].draw(this);
+    
+    stroke(255);
+    strokeWeight(3);
+    point(hit.x,hit.y,hit.z);
+    strokeWeight(1);
+  }
+  
+  camera();
+  noLights();
+  fill(255);
+  text("Face "+picked+"  pick "+nf(t/1000f,1,1)+" us",10,20);
+}
+
+public void keyPressed() {
+  if(key==' ') build();
+  if(key=='r') model.rotateY(radians(10));
+}
+
+void build() {
+  model=new UGeometry();
+
+  float n=20;
+  float hD=300/(n-1);
+  
+  for(float i=0; i<n; i++) {
+    float r=50+noise(i/10)*50;
+    UGeometry b=UPrimitive.cylinder(r, hD*0.5, 36, true);
+    UVec3 pos=new UVec3(random(70),i*hD,0);
+    pos.rotateY(random(TWO_PI));
+    b.translate(pos);
+    model.add(b);
+  }
+
+  model.center();  
+}
@@ -0,0 +1,67 @@
+/**
+ * Times transformations, bounds and face normals on large meshes, 
+ * comparing UFace / UVec3 objects with compact storage using the 
+ * SCALAR and FAST kernels in UMeshKernels. The test meshes are a 
+ * cylinder subdivided with USubdivider and the same mesh read back 
+ * with readSTL(). Results are printed to the console.
+ */
+
+import unlekker.util.*;
+import unlekker.modelbuilder.*;
+import unlekker.modelbuilder.filter.*;
+
+int reps=10;
+
+void setup() {
+  size(400,200);
+  noLoop();
+
+  UGeometry sub=UPrimitive.cylinderGrid(200,400,100,50,true);
+  USubdivider subdiv=new USubdivider().setMaxEdgeLength(0.001f);
+  for(int i=0; i<2; i++) sub=subdiv.subdivideConditional(sub);
+
+  sub.writeSTL(this,"UKernelBenchmark.stl");
+  UGeometry stl=UGeometry.readSTL(this,sketchPath("UKernelBenchmark.stl"));
+
+  bench("USubdivider",sub);
+  bench("readSTL",stl);
+  exit();
+}
+
+void bench(String name,UGeometry g) {
+  println("\n"+name+": "+g.faceNum+" faces, "+g.vert.n+" vertices");
+
+  UGeometry obj=new UGeometry(g);
+  float tObj=time(obj);
+
+  UGeometry compact=new UGeometry(g).compact();
+  UMeshKernels.setMode(UMeshKernels.SCALAR);
+  float tScalar=time(compact);
+  UMeshKernels.setMode(UMeshKernels.FAST);
+  float tFast=time(compact);
+
+  UParallel.enable();
+  float tParallel=time(compact);
+  UParallel.disable();
+  UMeshKernels.setMode(UMeshKernels.SCALAR);
+
+  println("objects          "+nf(tObj,1,2)+" ms");
+  println("compact SCALAR   "+nf(tScalar,1,2)+" ms  x"+nf(tObj/tScalar,1,1));
+  println("compact FAST     "+nf(tFast,1,2)+" ms  x"+nf(tObj/tFast,1,1));
+  println("FAST + parallel  "+nf(tParallel,1,2)+" ms  x"+nf(tObj/tParallel,1,1));
+}
+
+//-- average time in ms for one round of operations, after a warm-up round
+float time(UGeometry g) {
+  ops(g);
+  long t=System.nanoTime();
+  for(int i=0; i<reps; i++) ops(g);
+  return (float)((System.nanoTime()-t)/1e6/reps);
+}
+
+void ops(UGeometry g) {
+  g.rotateX(0.01f).rotateY(-0.01f);
+  g.translate(1,2,3).scale(1.001f);
+  g.calcBounds();
+  g.calcFaceNormals();
+}
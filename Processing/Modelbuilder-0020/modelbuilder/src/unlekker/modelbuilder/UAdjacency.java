@@ -0,0 +1,359 @@
+package unlekker.modelbuilder;
+
+import unlekker.util.*;
+
+/**
+ * Half-edge adjacency index for the triangles of a {@link UGeometry},
+ * answering questions like "which faces share this edge" or "which faces
+ * touch this vertex" in constant time. Get one with
+ * {@link UGeometry#getAdjacency()}, which builds it on first use and keeps
+ * it up to date.
+ * <p>
+ * Each face <code>f</code> has three half-edges <code>f*3+k</code>, running
+ * from vertex <code>k</code> to vertex <code>(k+1)%3</code> of the face.
+ * <code>twin[]</code> links every half-edge to the half-edge running the
+ * opposite way along the same edge in a neighbouring face, or is -1 for
+ * boundary edges.
+ * <p>
+ * The index works on vertex IDs, so faces only count as connected if they
+ * share vertices in the <code>vert</code> list. Use
+ * <code>noDuplicates()</code> or <code>removeDuplicateVertices()</code> to
+ * weld the mesh first. Building is O(n). When faces are appended to the
+ * geometry only the new faces are indexed. Library methods that remove
+ * faces or change vertex IDs cause a full rebuild, code doing so directly
+ * must call {@link UGeometry#topologyChanged()}. Transformations don't 
+ * affect it.
+ */
+public class UAdjacency {
+	/**
+	 * Number of faces and vertices indexed.
+	 */
+	public int faceNum,vertNum;
+	/**
+	 * Vertex IDs of the indexed faces, 3 per face.
+	 */
+	public int tri[];
+	/**
+	 * Opposite half-edge for each half-edge, or -1 for boundary edges.
+	 */
+	public int twin[];
+	/**
+	 * Number of edges that are shared by more than two faces, or by two
+	 * faces with inconsistent winding. Zero for a manifold mesh.
+	 */
+	public int nonManifoldNum;
+
+	private long key[];
+	private int val[],mask,keyNum;
+
+	// faces per vertex in CSR form, rebuilt lazily after faces are added
+	private int vfStart[],vfList[];
+	private boolean vfDirty=true;
+
+	private int topoMod;
+
+	public UAdjacency(UGeometry g) {
+		build(g);
+	}
+
+	/**
+	 * Rebuilds the index from scratch.
+	 * @param g
+	 */
+	public UAdjacency build(UGeometry g) {
+		faceNum=0;
+		vertNum=0;
+		nonManifoldNum=0;
+		keyNum=0;
+		tri=new int[Math.max(g.faceNum,1)*3];
+		twin=new int[tri.length];
+		initTable(Math.max(g.faceNum,16)*3);
+
+		topoMod=g.topoMod;
+		append(g);
+		return this;
+	}
+
+	/**
+	 * Brings the index up to date with the geometry. Faces appended since
+	 * the last update are added incrementally. A full rebuild is done if the
+	 * face count went down or <code>topologyChanged()</code> was called.
+	 * @param g
+	 */
+	public UAdjacency update(UGeometry g) {
+		if(g.topoMod!=topoMod || g.faceNum<faceNum) return build(g);
+		if(g.faceNum>faceNum) append(g);
+		return this;
+	}
+
+	private void append(UGeometry g) {
+		int fn=g.faceNum;
+		if(tri.length<fn*3) {
+			int size=Math.max(tri.length*2, fn*3);
+			tri=UUtil.resizeArrayInt(tri, size);
+			twin=UUtil.resizeArrayInt(twin, size);
+		}
+		if(keyNum+(fn-faceNum)*3>(mask+1)/2) rehash((keyNum+(fn-faceNum)*3)*2);
+
+		for(int i=faceNum; i<fn; i++) {
+			if(g.mesh!=null) System.arraycopy(g.mesh.tri, i*3, tri, i*3, 3);
+			else System.arraycopy(g.face[i].vid, 0, tri, i*3, 3);
+			for(int k=0; k<3; k++) {
+				vertNum=Math.max(vertNum, tri[i*3+k]+1);
+				link(i*3+k);
+			}
+		}
+
+		faceNum=fn;
+		vfDirty=true;
+	}
+
+	// Inserts half-edge and pairs it with its opposite, if indexed
+	private void link(int he) {
+		int a=from(he),b=to(he);
+		twin[he]=-1;
+		if(a==b) return; // degenerate face, edge has no length
+
+		if(find(a,b)!=-1) {
+			nonManifoldNum++; // same edge, same direction: bad winding
+			return;
+		}
+		insert(a,b,he);
+
+		int opp=find(b,a);
+		if(opp==-1) return;
+		if(twin[opp]==-1) {
+			twin[opp]=he;
+			twin[he]=opp;
+		}
+		else nonManifoldNum++; // third face on this edge
+	}
+
+	/////////////////////////////////////////////////////////
+	// QUERIES
+
+	/**
+	 * Start vertex of half-edge.
+	 */
+	public int from(int he) {
+		return tri[he];
+	}
+
+	/**
+	 * End vertex of half-edge.
+	 */
+	public int to(int he) {
+		return tri[(he%3==2 ? he-2 : he+1)];
+	}
+
+	/**
+	 * Face a half-edge belongs to.
+	 */
+	public int face(int he) {
+		return he/3;
+	}
+
+	/**
+	 * Next half-edge around the same face.
+	 */
+	public int next(int he) {
+		return (he%3==2 ? he-2 : he+1);
+	}
+
+	/**
+	 * Returns half-edge running from vertex a to vertex b, or -1.
+	 */
+	public int getEdge(int a,int b) {
+		return find(a,b);
+	}
+
+	/**
+	 * Returns the face on the other side of edge k of face f (the edge from
+	 * vertex k to vertex k+1), or -1 if the edge is on a boundary.
+	 */
+	public int getNeighbour(int f,int k) {
+		int he=twin[f*3+k];
+		return (he==-1 ? -1 : he/3);
+	}
+
+	/**
+	 * Returns the IDs of the faces sharing the edge between vertices a and
+	 * b, in either direction. The array has 0, 1 or 2 entries.
+	 */
+	public int[] getEdgeFaces(int a,int b) {
+		int he1=find(a,b),he2=find(b,a);
+		if(he1==-1 && he2==-1) return new int[0];
+		if(he1==-1) return new int[] {he2/3};
+		if(he2==-1) return new int[] {he1/3};
+		return new int[] {he1/3,he2/3};
+	}
+
+	public boolean isBoundary(int he) {
+		return twin[he]==-1;
+	}
+
+	/**
+	 * Number of half-edges without a twin, i.e. edges on the border of
+	 * holes or open surfaces. Collapsed edges of degenerate faces are also
+	 * counted.
+	 */
+	public int getBoundaryEdgeNum() {
+		int cnt=0;
+		for(int i=0; i<faceNum*3; i++) if(twin[i]==-1) cnt++;
+		return cnt;
+	}
+
+	/**
+	 * True if every edge is shared by at most two consistently wound faces.
+	 */
+	public boolean isManifold() {
+		return nonManifoldNum==0;
+	}
+
+	/**
+	 * True if the mesh is manifold and has no boundary edges.
+	 */
+	public boolean isClosed() {
+		return isManifold() && getBoundaryEdgeNum()==0;
+	}
+
+	/**
+	 * Number of faces using vertex v.
+	 */
+	public int getVertexFaceNum(int v) {
+		buildVertexFaces();
+		if(v>=vertNum) return 0;
+		return vfStart[v+1]-vfStart[v];
+	}
+
+	/**
+	 * Returns face number i of the faces using vertex v, where i runs from 0
+	 * to <code>getVertexFaceNum(v)-1</code>. Returns -1 if i is outside that
+	 * range, which includes vertices not used by any face.
+	 */
+	public int getVertexFace(int v,int i) {
+		if(i<0 || i>=getVertexFaceNum(v)) return -1;
+		return vfList[vfStart[v]+i];
+	}
+
+	/**
+	 * Returns the IDs of all faces using vertex v.
+	 */
+	public int[] getVertexFaces(int v) {
+		int n=getVertexFaceNum(v);
+		int res[]=new int[n];
+		if(n>0) System.arraycopy(vfList, vfStart[v], res, 0, n);
+		return res;
+	}
+
+	/**
+	 * Labels faces by connected component, where faces are connected if they
+	 * share an edge.
+	 * @param id Array to store component ID per face in, created if
+	 * <code>null</code> or too short
+	 * @return Component IDs, numbered from 0
+	 */
+	public int[] getComponents(int id[]) {
+		if(id==null || id.length<faceNum) id=new int[faceNum];
+		for(int i=0; i<faceNum; i++) id[i]=-1;
+
+		int stack[]=new int[Math.max(faceNum,1)];
+		int comp=0;
+		for(int i=0; i<faceNum; i++) if(id[i]==-1) {
+			int top=0;
+			stack[top++]=i;
+			id[i]=comp;
+			while(top>0) {
+				int f=stack[--top];
+				for(int k=0; k<3; k++) {
+					int he=twin[f*3+k];
+					if(he!=-1 && id[he/3]==-1) {
+						id[he/3]=comp;
+						stack[top++]=he/3;
+					}
+				}
+			}
+			comp++;
+		}
+		return id;
+	}
+
+	/**
+	 * Number of connected components.
+	 */
+	public int getComponentNum() {
+		int id[]=getComponents(null),num=0;
+		for(int i=0; i<faceNum; i++) num=Math.max(num, id[i]+1);
+		return num;
+	}
+
+	public String toString() {
+		return "UAdjacency: f="+faceNum+" v="+vertNum+
+				" boundary="+getBoundaryEdgeNum()+" nonManifold="+nonManifoldNum;
+	}
+
+	/////////////////////////////////////////////////////////
+	// INTERNALS
+
+	// counting sort of faces by vertex
+	private void buildVertexFaces() {
+		if(!vfDirty) return;
+
+		vfStart=new int[vertNum+1];
+		for(int i=0; i<faceNum*3; i++) vfStart[tri[i]+1]++;
+		for(int i=0; i<vertNum; i++) vfStart[i+1]+=vfStart[i];
+
+		vfList=new int[Math.max(faceNum*3,1)];
+		int pos[]=new int[vertNum];
+		System.arraycopy(vfStart, 0, pos, 0, vertNum);
+		for(int i=0; i<faceNum*3; i++) vfList[pos[tri[i]]++]=i/3;
+
+		vfDirty=false;
+	}
+
+	private void initTable(int n) {
+		int size=16;
+		while(size<n*2) size*=2;
+		key=new long[size];
+		val=new int[size];
+		for(int i=0; i<size; i++) val[i]=-1;
+		mask=size-1;
+	}
+
+	private void rehash(int n) {
+		long oldKey[]=key;
+		int oldVal[]=val;
+
+		initTable(n);
+		for(int i=0; i<oldKey.length; i++) if(oldVal[i]!=-1) {
+			int h=slot(oldKey[i]);
+			key[h]=oldKey[i];
+			val[h]=oldVal[i];
+		}
+	}
+
+	private void insert(int a,int b,int he) {
+		long k=edgeKey(a,b);
+		int h=slot(k);
+		key[h]=k;
+		val[h]=he;
+		keyNum++;
+	}
+
+	private int find(int a,int b) {
+		long k=edgeKey(a,b);
+		return val[slot(k)];
+	}
+
+	// Slot holding key k, or the empty slot where it would go
+	private int slot(long k) {
+		long x=k*0x9E3779B97F4A7C15L;
+		int h=(int)(x ^ (x>>>32)) & mask;
+		while(val[h]!=-1 && key[h]!=k) h=(h+1) & mask;
+		return h;
+	}
+
+	private static long edgeKey(int a,int b) {
+		return ((long)a<<32) | (b & 0xffffffffL);
+	}
+}
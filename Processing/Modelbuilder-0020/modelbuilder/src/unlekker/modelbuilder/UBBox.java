@@ -16,7 +16,8 @@ public class UBBox {
 	
 	public void calc(UGeometry g) {
 		reset();
-		for(int i=0; i<g.faceNum; i++) {
+		if(g.mesh!=null) g.mesh.addToBounds(this);
+		else for(int i=0; i<g.faceNum; i++) {
 			addPoint(g.face[i].v[0]);
 			addPoint(g.face[i].v[1]);
 			addPoint(g.face[i].v[2]);
@@ -73,6 +74,16 @@ public class UBBox {
 		return this;
 	}
 	
+	public UBBox add(float x,float y,float z) {
+		if(x<min.x) min.x=x;
+		if(y<min.y) min.y=y;
+		if(z<min.z) min.z=z;
+		if(x>max.x) max.x=x;
+		if(y>max.y) max.y=y;
+		if(z>max.z) max.z=z;
+		return this;
+	}
+	
 	public UBBox addFace(UFace f) {
 		addPoint(f.v,3);
 		return this;
@@ -108,7 +119,7 @@ public class UBBox {
 
 	public void reset() {
 		min.set(Float.MAX_VALUE,Float.MAX_VALUE,Float.MAX_VALUE);
-		max.set(Float.MIN_VALUE,Float.MIN_VALUE,Float.MIN_VALUE);
+		max.set(-Float.MAX_VALUE,-Float.MAX_VALUE,-Float.MAX_VALUE);
 	}
 	
 	public String toString() {
@@ -146,6 +157,29 @@ public class UBBox {
 		finishCalc();
 	}
 
+	/**
+	 * Transforms the box by an affine matrix without revisiting the 
+	 * geometry. The result is the smallest axis-aligned box containing the 
+	 * transformed box, which is exact for translation and scaling and a 
+	 * conservative fit after rotation.
+	 * @param m
+	 */
+	public void transform(UMatrix m) {
+		double ex=(max.x-min.x)*0.5,ey=(max.y-min.y)*0.5,ez=(max.z-min.z)*0.5;
+		double cx=(max.x+min.x)*0.5,cy=(max.y+min.y)*0.5,cz=(max.z+min.z)*0.5;
+		
+		double nx=m.m00*cx+m.m01*cy+m.m02*cz+m.m03;
+		double ny=m.m10*cx+m.m11*cy+m.m12*cz+m.m13;
+		double nz=m.m20*cx+m.m21*cy+m.m22*cz+m.m23;
+		double dx=Math.abs(m.m00)*ex+Math.abs(m.m01)*ey+Math.abs(m.m02)*ez;
+		double dy=Math.abs(m.m10)*ex+Math.abs(m.m11)*ey+Math.abs(m.m12)*ez;
+		double dz=Math.abs(m.m20)*ex+Math.abs(m.m21)*ey+Math.abs(m.m22)*ez;
+		
+		min.set((float)(nx-dx),(float)(ny-dy),(float)(nz-dz));
+		max.set((float)(nx+dx),(float)(ny+dy),(float)(nz+dz));
+		finishCalc();
+	}
+
 	public void scale(float m) {
 		c.mult(m);
 		min.mult(m);
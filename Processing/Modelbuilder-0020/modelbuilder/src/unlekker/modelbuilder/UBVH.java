@@ -0,0 +1,514 @@
+package unlekker.modelbuilder;
+
+import processing.core.PGraphics;
+
+/**
+ * Bounding volume hierarchy over the triangles of a {@link UGeometry}, for
+ * fast ray casting and picking. The tree is built with a binned surface area
+ * heuristic and stored in flat arrays. Triangle vertices are copied into the
+ * tree in traversal order, so queries don't touch the geometry.
+ * <p>
+ * After transforming the geometry call <code>refit()</code>, which updates
+ * the vertex copies and node bounds without rebuilding the tree. Refitting is
+ * much faster than building, but the tree can become less efficient after
+ * large deformations, in which case <code>build()</code> should be called.
+ * <p>
+ * Rays hit triangles from both sides. Face IDs returned by queries are
+ * indices into <code>g.face</code> (or the compact mesh).
+ * <p>
+ * Typical use for picking, called in <code>draw()</code> after the camera
+ * and model transformations have been applied:
+ * <p>
+ * <code>if(bvh==null) bvh=new UBVH(model);<br>
+ * int id=bvh.pick(g, mouseX, mouseY, hit);</code>
+ */
+public class UBVH {
+	/**
+	 * Maximum number of triangles in a leaf node.
+	 */
+	public static int maxLeafSize=4;
+	static final int BINS=16;
+
+	/**
+	 * Number of triangles and nodes in the tree.
+	 */
+	public int faceNum,nodeNum;
+
+	// per node: bounds (minx,miny,minz,maxx,maxy,maxz), and either first
+	// triangle + count for leaves, or left child (right is left+1) with
+	// count 0 for inner nodes
+	private float box[];
+	private int first[],count[];
+
+	// triangle vertices in tree order, 9 floats per triangle, and the
+	// face ID of each
+	private float tv[];
+	private int faceID[];
+
+	// build scratch
+	private float cent[],tbox[];
+
+	public UBVH(UGeometry g) {
+		build(g);
+	}
+
+	/**
+	 * Builds the tree from scratch.
+	 * @param g
+	 */
+	public UBVH build(UGeometry g) {
+		g.flushTransforms();
+		faceNum=g.faceNum;
+		faceID=new int[faceNum];
+		for(int i=0; i<faceNum; i++) faceID[i]=i;
+		tv=new float[faceNum*9];
+		gather(g);
+
+		cent=new float[faceNum*3];
+		tbox=new float[faceNum*6];
+		for(int i=0; i<faceNum; i++) triBounds(i);
+
+		int maxNodes=Math.max(faceNum*2-1,1);
+		box=new float[maxNodes*6];
+		first=new int[maxNodes];
+		count=new int[maxNodes];
+		nodeNum=1;
+		setBounds(0,0,faceNum);
+		subdivide(0,0,faceNum);
+
+		// put triangle data in tree order
+		float old[]=tv;
+		tv=new float[faceNum*9];
+		for(int i=0; i<faceNum; i++)
+			System.arraycopy(old, faceID[i]*9, tv, i*9, 9);
+
+		cent=null;
+		tbox=null;
+		return this;
+	}
+
+	/**
+	 * Updates vertex positions and node bounds after the geometry's vertices
+	 * have moved. The faces must be the same as when the tree was built,
+	 * otherwise the tree is rebuilt.
+	 * @param g
+	 */
+	public UBVH refit(UGeometry g) {
+		if(g.faceNum!=faceNum) return build(g);
+
+		g.flushTransforms();
+		gather(g);
+
+		// children always come after their parent
+		for(int n=nodeNum-1; n>=0; n--) {
+			if(count[n]>0) setBounds(n,first[n],first[n]+count[n]);
+			else {
+				int l=first[n]*6,r=l+6,b=n*6;
+				for(int k=0; k<3; k++) {
+					box[b+k]=Math.min(box[l+k],box[r+k]);
+					box[b+k+3]=Math.max(box[l+k+3],box[r+k+3]);
+				}
+			}
+		}
+		return this;
+	}
+
+	/////////////////////////////////////////////////////////
+	// QUERIES
+
+	/**
+	 * Finds the nearest triangle hit by a ray.
+	 * @param orig Ray origin
+	 * @param dir Ray direction, need not be normalized
+	 * @param hit If not <code>null</code>, set to the hit position
+	 * @return Face ID, or -1 if nothing was hit
+	 */
+	public int raycast(UVec3 orig,UVec3 dir,UVec3 hit) {
+		float res[]=new float[3];
+		int id=intersect(orig.x,orig.y,orig.z,dir.x,dir.y,dir.z,
+				Float.MAX_VALUE,false,res,new int[64]);
+		if(id!=-1 && hit!=null) hit.set(
+				orig.x+dir.x*res[0],orig.y+dir.y*res[0],orig.z+dir.z*res[0]);
+		return id;
+	}
+
+	/**
+	 * Finds the nearest triangle hit by a ray.
+	 * @param res If not <code>null</code>, receives the ray parameter t of
+	 * the hit followed by the barycentric coordinates u,v
+	 * @return Face ID, or -1 if nothing was hit
+	 */
+	public int raycast(UVec3 orig,UVec3 dir,float tmax,float res[]) {
+		if(res==null) res=new float[3];
+		return intersect(orig.x,orig.y,orig.z,dir.x,dir.y,dir.z,
+				tmax,false,res,new int[64]);
+	}
+
+	/**
+	 * Finds the triangle hit nearest to <code>a</code> on the line segment
+	 * from <code>a</code> to <code>b</code>.
+	 * @param hit If not <code>null</code>, set to the hit position
+	 * @return Face ID, or -1 if nothing was hit
+	 */
+	public int segment(UVec3 a,UVec3 b,UVec3 hit) {
+		float res[]=new float[3];
+		float dx=b.x-a.x,dy=b.y-a.y,dz=b.z-a.z;
+		int id=intersect(a.x,a.y,a.z,dx,dy,dz,1,false,res,new int[64]);
+		if(id!=-1 && hit!=null) hit.set(
+				a.x+dx*res[0],a.y+dy*res[0],a.z+dz*res[0]);
+		return id;
+	}
+
+	/**
+	 * Returns true if any triangle crosses the line segment from
+	 * <code>a</code> to <code>b</code>. Faster than <code>segment()</code>
+	 * since it stops at the first hit found.
+	 */
+	public boolean segmentBlocked(UVec3 a,UVec3 b) {
+		return intersect(a.x,a.y,a.z,b.x-a.x,b.y-a.y,b.z-a.z,
+				1,true,new float[3],new int[64])!=-1;
+	}
+
+	/**
+	 * Casts n rays at once, in parallel for large batches (see
+	 * {@link UParallel}).
+	 * @param orig Ray origins, 3 floats per ray
+	 * @param dir Ray directions, 3 floats per ray
+	 * @param n Number of rays
+	 * @param face Receives face ID per ray, or -1
+	 * @param t Receives ray parameter of each hit, may be <code>null</code>
+	 */
+	public void raycast(final float orig[],final float dir[],int n,
+			final int face[],final float t[]) {
+		UParallel.run(n, new UParallel.Range() {
+			public void run(int start,int end) {
+				float res[]=new float[3];
+				int stack[]=new int[64];
+				for(int i=start; i<end; i++) {
+					int id=i*3;
+					face[i]=intersect(orig[id],orig[id+1],orig[id+2],
+							dir[id],dir[id+1],dir[id+2],Float.MAX_VALUE,false,res,stack);
+					if(t!=null) t[i]=(face[i]==-1 ? -1 : res[0]);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Finds the face under a screen position, typically the mouse. Must be
+	 * called while the same camera and model transformations are active as
+	 * when the geometry was drawn. Requires an OpenGL renderer.
+	 * @param g Renderer, usually <code>g</code> in a sketch
+	 * @param hit If not <code>null</code>, set to the hit position
+	 * @return Face ID, or -1 if nothing is under the position
+	 */
+	public int pick(PGraphics g,float mx,float my,UVec3 hit) {
+		UVec3 orig=new UVec3(),dir=new UVec3();
+		if(!UIntersections.getPickRay(g, mx, my, orig, dir)) return -1;
+		return raycast(orig,dir,hit);
+	}
+
+	public String toString() {
+		return "UBVH: f="+faceNum+" nodes="+nodeNum;
+	}
+
+	/////////////////////////////////////////////////////////
+	// TRAVERSAL
+
+	int intersect(float ox,float oy,float oz,float dx,float dy,float dz,
+			float tmax,boolean any,float res[],int stack[]) {
+		if(faceNum==0) return -1;
+
+		float ix=1f/dx,iy=1f/dy,iz=1f/dz;
+		int hitID=-1,top=0,n=0;
+		float best=tmax;
+
+		if(boxEntry(0,ox,oy,oz,ix,iy,iz,best)==Float.MAX_VALUE) return -1;
+
+		while(true) {
+			if(count[n]>0) {
+				for(int i=first[n],end=i+count[n]; i<end; i++) {
+					float t=triangle(i,ox,oy,oz,dx,dy,dz,best,res);
+					if(t>=0) {
+						best=t;
+						hitID=faceID[i];
+						if(any) return hitID;
+					}
+				}
+				if(top==0) break;
+				n=stack[--top];
+				continue;
+			}
+
+			// visit nearer child first
+			int l=first[n],r=l+1;
+			float tl=boxEntry(l,ox,oy,oz,ix,iy,iz,best);
+			float tr=boxEntry(r,ox,oy,oz,ix,iy,iz,best);
+			if(tl>tr) {
+				int tmp=l; l=r; r=tmp;
+				float tt=tl; tl=tr; tr=tt;
+			}
+
+			if(tl==Float.MAX_VALUE) {
+				if(top==0) break;
+				n=stack[--top];
+			}
+			else {
+				n=l;
+				if(tr!=Float.MAX_VALUE) {
+					if(top==stack.length) stack=grow(stack);
+					stack[top++]=r;
+				}
+			}
+		}
+
+		if(hitID!=-1) res[0]=best;
+		return hitID;
+	}
+
+	// Slab test, returns entry distance or Float.MAX_VALUE for a miss
+	private float boxEntry(int n,float ox,float oy,float oz,
+			float ix,float iy,float iz,float tmax) {
+		int b=n*6;
+		float t1=(box[b]-ox)*ix,t2=(box[b+3]-ox)*ix;
+		float tmin=Math.min(t1,t2),tmx=Math.max(t1,t2);
+		t1=(box[b+1]-oy)*iy;
+		t2=(box[b+4]-oy)*iy;
+		tmin=Math.max(tmin,Math.min(t1,t2));
+		tmx=Math.min(tmx,Math.max(t1,t2));
+		t1=(box[b+2]-oz)*iz;
+		t2=(box[b+5]-oz)*iz;
+		tmin=Math.max(tmin,Math.min(t1,t2));
+		tmx=Math.min(tmx,Math.max(t1,t2));
+
+		if(tmx>=tmin && tmx>=0 && tmin<=tmax) return Math.max(tmin,0);
+		return Float.MAX_VALUE;
+	}
+
+	// Moller-Trumbore, returns t or -1. Stores u,v in res[1], res[2].
+	private float triangle(int i,float ox,float oy,float oz,
+			float dx,float dy,float dz,float tmax,float res[]) {
+		int id=i*9;
+		float ax=tv[id],ay=tv[id+1],az=tv[id+2];
+		float e1x=tv[id+3]-ax,e1y=tv[id+4]-ay,e1z=tv[id+5]-az;
+		float e2x=tv[id+6]-ax,e2y=tv[id+7]-ay,e2z=tv[id+8]-az;
+
+		float px=dy*e2z-dz*e2y,py=dz*e2x-dx*e2z,pz=dx*e2y-dy*e2x;
+		float det=e1x*px+e1y*py+e1z*pz;
+		if(det>-1e-12f && det<1e-12f) return -1;
+		float inv=1f/det;
+
+		float sx=ox-ax,sy=oy-ay,sz=oz-az;
+		float u=(sx*px+sy*py+sz*pz)*inv;
+		if(u<0 || u>1) return -1;
+
+		float qx=sy*e1z-sz*e1y,qy=sz*e1x-sx*e1z,qz=sx*e1y-sy*e1x;
+		float v=(dx*qx+dy*qy+dz*qz)*inv;
+		if(v<0 || u+v>1) return -1;
+
+		float t=(e2x*qx+e2y*qy+e2z*qz)*inv;
+		if(t<0 || t>tmax) return -1;
+
+		res[1]=u;
+		res[2]=v;
+		return t;
+	}
+
+	private static int[] grow(int a[]) {
+		int b[]=new int[a.length*2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	/////////////////////////////////////////////////////////
+	// BUILDING
+
+	// Copies triangle vertices from the geometry, in faceID order
+	private void gather(UGeometry g) {
+		if(g.mesh!=null) {
+			int tri[]=g.mesh.tri;
+			float pos[]=g.mesh.pos;
+			for(int i=0; i<faceNum; i++) {
+				int f=faceID[i]*3;
+				for(int k=0; k<3; k++)
+					System.arraycopy(pos, tri[f+k]*3, tv, i*9+k*3, 3);
+			}
+			return;
+		}
+
+		UVec3 v[]=g.vert.v;
+		for(int i=0; i<faceNum; i++) {
+			int vid[]=g.face[faceID[i]].vid;
+			for(int k=0; k<3; k++) {
+				UVec3 vv=v[vid[k]];
+				int id=i*9+k*3;
+				tv[id]=vv.x;
+				tv[id+1]=vv.y;
+				tv[id+2]=vv.z;
+			}
+		}
+	}
+
+	// Bounds and centroid of triangle i, in original face order
+	private void triBounds(int i) {
+		int id=i*9,b=i*6;
+		for(int k=0; k<3; k++) {
+			float a=tv[id+k],c=tv[id+k+3],d=tv[id+k+6];
+			tbox[b+k]=Math.min(a,Math.min(c,d));
+			tbox[b+k+3]=Math.max(a,Math.max(c,d));
+			cent[i*3+k]=(tbox[b+k]+tbox[b+k+3])*0.5f;
+		}
+	}
+
+	// Node bounds from its triangles. Uses tbox while building, the
+	// tree-ordered vertices when refitting.
+	private void setBounds(int n,int start,int end) {
+		int b=n*6;
+		for(int k=0; k<3; k++) {
+			box[b+k]=Float.MAX_VALUE;
+			box[b+k+3]=-Float.MAX_VALUE;
+		}
+
+		for(int i=start; i<end; i++) {
+			if(tbox!=null) {
+				int t=faceID[i]*6;
+				for(int k=0; k<3; k++) {
+					box[b+k]=Math.min(box[b+k],tbox[t+k]);
+					box[b+k+3]=Math.max(box[b+k+3],tbox[t+k+3]);
+				}
+			}
+			else for(int j=0; j<3; j++) {
+				int id=i*9+j*3;
+				for(int k=0; k<3; k++) {
+					box[b+k]=Math.min(box[b+k],tv[id+k]);
+					box[b+k+3]=Math.max(box[b+k+3],tv[id+k]);
+				}
+			}
+		}
+	}
+
+	private void subdivide(int n,int start,int end) {
+		int num=end-start;
+		first[n]=start;
+		count[n]=num;
+		if(num<=maxLeafSize) return;
+
+		// centroid bounds, split along the longest axis
+		float cmin[]={Float.MAX_VALUE,Float.MAX_VALUE,Float.MAX_VALUE};
+		float cmax[]={-Float.MAX_VALUE,-Float.MAX_VALUE,-Float.MAX_VALUE};
+		for(int i=start; i<end; i++) {
+			int c=faceID[i]*3;
+			for(int k=0; k<3; k++) {
+				cmin[k]=Math.min(cmin[k],cent[c+k]);
+				cmax[k]=Math.max(cmax[k],cent[c+k]);
+			}
+		}
+		int axis=0;
+		if(cmax[1]-cmin[1]>cmax[axis]-cmin[axis]) axis=1;
+		if(cmax[2]-cmin[2]>cmax[axis]-cmin[axis]) axis=2;
+		float extent=cmax[axis]-cmin[axis];
+
+		int mid;
+		if(extent<=0) mid=start+num/2; // all centroids coincide
+		else {
+			mid=splitSAH(n,start,end,axis,cmin[axis],extent);
+			if(mid<0) return; // a leaf is cheaper
+		}
+
+		int l=nodeNum;
+		nodeNum+=2;
+		first[n]=l;
+		count[n]=0;
+		setBounds(l,start,mid);
+		setBounds(l+1,mid,end);
+		subdivide(l,start,mid);
+		subdivide(l+1,mid,end);
+	}
+
+	// Bins centroids and partitions at the cheapest split plane. Returns
+	// the split index, or -1 if not splitting is cheaper.
+	private int splitSAH(int n,int start,int end,int axis,float min,float extent) {
+		int binCnt[]=new int[BINS];
+		float binBox[]=new float[BINS*6];
+		for(int i=0; i<BINS; i++) emptyBox(binBox,i);
+
+		float scale=BINS/extent;
+		for(int i=start; i<end; i++) {
+			int f=faceID[i];
+			int bin=Math.min(BINS-1,(int)((cent[f*3+axis]-min)*scale));
+			binCnt[bin]++;
+			growBox(binBox,bin,tbox,f);
+		}
+
+		// sweep from the right, then from the left evaluating each plane
+		float rightArea[]=new float[BINS];
+		int rightCnt[]=new int[BINS];
+		float acc[]=new float[6];
+		emptyBox(acc,0);
+		int cnt=0;
+		for(int i=BINS-1; i>0; i--) {
+			growBox(acc,0,binBox,i);
+			cnt+=binCnt[i];
+			rightCnt[i]=cnt;
+			rightArea[i]=area(acc);
+		}
+
+		emptyBox(acc,0);
+		cnt=0;
+		float bestCost=Float.MAX_VALUE;
+		int bestPlane=-1;
+		for(int i=0; i<BINS-1; i++) {
+			growBox(acc,0,binBox,i);
+			cnt+=binCnt[i];
+			if(cnt==0 || rightCnt[i+1]==0) continue;
+			float cost=cnt*area(acc)+rightCnt[i+1]*rightArea[i+1];
+			if(cost<bestCost) {
+				bestCost=cost;
+				bestPlane=i;
+			}
+		}
+
+		int num=end-start;
+		float leafCost=num*area(box,n);
+		if(bestPlane<0 || (bestCost>=leafCost && num<=maxLeafSize*4)) {
+			if(num<=maxLeafSize*4) return -1;
+			return start+num/2;
+		}
+
+		// partition faceID[start..end) around the plane
+		int i=start,j=end-1;
+		while(i<=j) {
+			int f=faceID[i];
+			int bin=Math.min(BINS-1,(int)((cent[f*3+axis]-min)*scale));
+			if(bin<=bestPlane) i++;
+			else {
+				faceID[i]=faceID[j];
+				faceID[j--]=f;
+			}
+		}
+		return i;
+	}
+
+	private static void emptyBox(float b[],int i) {
+		for(int k=0; k<3; k++) {
+			b[i*6+k]=Float.MAX_VALUE;
+			b[i*6+k+3]=-Float.MAX_VALUE;
+		}
+	}
+
+	private static void growBox(float b[],int i,float src[],int j) {
+		for(int k=0; k<3; k++) {
+			b[i*6+k]=Math.min(b[i*6+k],src[j*6+k]);
+			b[i*6+k+3]=Math.max(b[i*6+k+3],src[j*6+k+3]);
+		}
+	}
+
+	private static float area(float b[]) {
+		return area(b,0);
+	}
+
+	private static float area(float b[],int i) {
+		float dx=b[i*6+3]-b[i*6],dy=b[i*6+4]-b[i*6+1],dz=b[i*6+5]-b[i*6+2];
+		return dx*dy+dy*dz+dz*dx;
+	}
+}
@@ -0,0 +1,513 @@
+package unlekker.modelbuilder;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+import processing.core.PConstants;
+import unlekker.util.*;
+
+/**
+ * Triangle mesh stored outside the Java heap, for models too large to keep
+ * as a {@link UGeometry}. The layout is the same as {@link UCompactMesh}
+ * (positions as x,y,z triplets, three vertex indices per triangle and a
+ * normal per face), but the data lives in direct NIO buffers or in files
+ * mapped into memory. Neither adds to garbage collection work or needs a
+ * large <code>-Xmx</code>.
+ * <p>
+ * Memory is held until <code>close()</code> is called, which releases it
+ * immediately rather than waiting for the garbage collector. A closed mesh
+ * can't be used again, and buffers taken from it must not be used after
+ * closing. Mapped meshes keep their data in three files next to
+ * the given base file (<code>.pos</code>, <code>.tri</code> and
+ * <code>.normal</code>), which are deleted on close if
+ * <code>doDeleteOnClose</code> is set. The files use native byte order and
+ * are meant as scratch space, not for exchange.
+ * <p>
+ * The mesh is a {@link UTriangleSink}, so STL files are read into it in
+ * chunks without an on-heap copy:
+ * <p>
+ * <code>UBufferMesh m=UBufferMesh.mapped(new File("/tmp/scan"));<br>
+ * new UTriangleStream(this, "scan.stl").run(m);<br>
+ * m.rotateX(HALF_PI).writeSTL(this, "scanRotated.stl");<br>
+ * m.close();</code>
+ * <p>
+ * Each buffer is limited to 2 GB, i.e. about 178 million vertices or
+ * triangles. Direct buffers count against the JVM's
+ * <code>-XX:MaxDirectMemorySize</code>, which defaults to the maximum heap
+ * size. Mapped meshes have no such limit and are paged by the OS.
+ */
+public class UBufferMesh implements UTriangleSink, Closeable {
+	/**
+	 * Vertex positions, face normals and triangle indices. The buffers are
+	 * replaced when the mesh grows. A reference kept from before stays 
+	 * valid but holds the old contents and doesn't see later changes, so 
+	 * read the fields again after adding data.
+	 */
+	public FloatBuffer pos,normal;
+	public IntBuffer tri;
+	public int vertNum,faceNum;
+	/**
+	 * If true, the files of a mapped mesh are deleted by <code>close()</code>.
+	 */
+	public boolean doDeleteOnClose=true;
+
+	private Block posBlock,triBlock,normalBlock;
+
+	/**
+	 * Creates mesh in direct buffers with room for the given number of
+	 * vertices and faces. The buffers grow as needed.
+	 */
+	public UBufferMesh(int vertCapacity,int faceCapacity) {
+		this(null,vertCapacity,faceCapacity);
+	}
+
+	private UBufferMesh(File base,int vertCapacity,int faceCapacity) {
+		posBlock=new Block(file(base,".pos"));
+		triBlock=new Block(file(base,".tri"));
+		normalBlock=new Block(file(base,".normal"));
+		ensureCapacity(Math.max(vertCapacity,1), Math.max(faceCapacity,1));
+	}
+
+	/**
+	 * Creates mesh in direct buffers holding a copy of a UGeometry.
+	 */
+	public UBufferMesh(UGeometry g) {
+		this(g.mesh!=null ? g.mesh.vertNum : g.vert.n,g.faceNum);
+		add(g);
+	}
+
+	/**
+	 * Creates empty mesh mapped to files next to <code>base</code>. Existing
+	 * files are overwritten.
+	 * @param base
+	 */
+	public static UBufferMesh mapped(File base) {
+		return new UBufferMesh(base,1<<16,1<<16);
+	}
+
+	/**
+	 * Reads STL file into a mesh in direct buffers. Relative paths are
+	 * resolved with <code>p.savePath()</code>.
+	 */
+	public static UBufferMesh readSTL(PApplet p,String path) {
+		UBufferMesh m=new UBufferMesh(1<<16,1<<16);
+		new UTriangleStream(p,path).run(m);
+		return m;
+	}
+
+	private static File file(File base,String ext) {
+		if(base==null) return null;
+		return new File(base.getPath()+ext);
+	}
+
+	/**
+	 * Makes room for the given total number of vertices and faces, at
+	 * least doubling the buffers when they have to grow.
+	 */
+	public UBufferMesh ensureCapacity(int vn,int fn) {
+		checkOpen();
+		if(pos==null || pos.capacity()<vn*3)
+			pos=posBlock.grow(Math.max(vn*12l, pos==null ? 0 : pos.capacity()*8l)).asFloatBuffer();
+		if(tri==null || tri.capacity()<fn*3) {
+			long size=Math.max(fn*12l, tri==null ? 0 : tri.capacity()*8l);
+			tri=triBlock.grow(size).asIntBuffer();
+			normal=normalBlock.grow(size).asFloatBuffer();
+		}
+		return this;
+	}
+
+	/**
+	 * Releases the memory or mapped files held by the mesh.
+	 */
+	public void close() {
+		if(posBlock==null) return;
+		posBlock.close(doDeleteOnClose);
+		triBlock.close(doDeleteOnClose);
+		normalBlock.close(doDeleteOnClose);
+		posBlock=triBlock=normalBlock=null;
+		pos=normal=null;
+		tri=null;
+		vertNum=faceNum=0;
+	}
+
+	public boolean isClosed() {
+		return posBlock==null;
+	}
+
+	private void checkOpen() {
+		if(posBlock==null) throw new IllegalStateException("UBufferMesh is closed.");
+	}
+
+	/////////////////////////////////////////////////////////
+	// ADDING DATA
+
+	/**
+	 * Adds vertex and returns its index.
+	 */
+	public int addVertex(float x,float y,float z) {
+		ensureCapacity(vertNum+1, faceNum);
+		int id=vertNum*3;
+		pos.put(id, x);
+		pos.put(id+1, y);
+		pos.put(id+2, z);
+		return vertNum++;
+	}
+
+	/**
+	 * Adds triangle from three vertex indices, calculates its normal and
+	 * returns its index.
+	 */
+	public int addFace(int v1,int v2,int v3) {
+		ensureCapacity(vertNum, faceNum+1);
+		int id=faceNum*3;
+		tri.put(id, v1);
+		tri.put(id+1, v2);
+		tri.put(id+2, v3);
+		UMeshKernels.faceNormals(pos, tri, normal, faceNum, faceNum+1);
+		return faceNum++;
+	}
+
+	/**
+	 * Appends the faces of a UGeometry, in compact or object form.
+	 */
+	public UBufferMesh add(UGeometry g) {
+		g.flushTransforms();
+		if(g.mesh==null) {
+			UCompactMesh m=new UCompactMesh(g);
+			add(m);
+		}
+		else add(g.mesh);
+		return this;
+	}
+
+	/**
+	 * Appends all vertices and faces of a compact mesh.
+	 */
+	public UBufferMesh add(UCompactMesh m) {
+		int offset=vertNum;
+		ensureCapacity(vertNum+m.vertNum, faceNum+m.faceNum);
+
+		pos.position(vertNum*3);
+		pos.put(m.pos, 0, m.vertNum*3);
+		pos.clear();
+		for(int i=0; i<m.faceNum*3; i++) tri.put(faceNum*3+i, m.tri[i]+offset);
+		vertNum+=m.vertNum;
+
+		int first=faceNum;
+		faceNum+=m.faceNum;
+		calcNormals(first, faceNum);
+		return this;
+	}
+
+	public void begin() {
+		checkOpen();
+	}
+
+	/**
+	 * Appends n triangles given as 9 floats each, with three new vertices
+	 * per triangle.
+	 */
+	public void add(float t[],int n) {
+		ensureCapacity(vertNum+n*3, faceNum+n);
+
+		pos.position(vertNum*3);
+		pos.put(t, 0, n*9);
+		pos.clear();
+		for(int i=0; i<n*3; i++) tri.put(faceNum*3+i, vertNum+i);
+		vertNum+=n*3;
+
+		int first=faceNum;
+		faceNum+=n;
+		calcNormals(first, faceNum);
+	}
+
+	public void end() {
+	}
+
+	/**
+	 * Copies vertex <code>id</code> into v, creating v if it is null.
+	 */
+	public UVec3 getVertex(int id,UVec3 v) {
+		if(v==null) v=new UVec3();
+		id*=3;
+		return v.set(pos.get(id),pos.get(id+1),pos.get(id+2));
+	}
+
+	/**
+	 * Copies the mesh into compact on-heap geometry.
+	 */
+	public UGeometry toGeometry() {
+		checkOpen();
+		UCompactMesh m=new UCompactMesh(vertNum,faceNum);
+		pos.get(m.pos, 0, vertNum*3);
+		tri.get(m.tri, 0, faceNum*3);
+		m.normal=new float[m.tri.length];
+		normal.get(m.normal, 0, faceNum*3);
+		pos.clear();
+		tri.clear();
+		normal.clear();
+		m.vertNum=vertNum;
+		m.faceNum=faceNum;
+
+		UGeometry g=new UGeometry();
+		g.setMesh(m);
+		return g;
+	}
+
+	/////////////////////////////////////////////////////////
+	// TRANSFORMATIONS
+
+	/**
+	 * Applies an affine transformation matrix to all vertices in one pass
+	 * and recalculates normals. Runs in parallel for large meshes, see
+	 * {@link UParallel}.
+	 */
+	public UBufferMesh transform(final UMatrix m) {
+		checkOpen();
+		UParallel.run(vertNum, new UParallel.Range() {
+			public void run(int start,int end) {
+				UMeshKernels.transform(pos, start, end, m);
+			}
+		});
+		calcNormals(0, faceNum);
+		return this;
+	}
+
+	public UBufferMesh translate(float x,float y,float z) {
+		return transform(new UMatrix().translate(x, y, z));
+	}
+
+	public UBufferMesh scale(float m) {
+		return transform(new UMatrix().scale(m, m, m));
+	}
+
+	public UBufferMesh scale(float mx,float my,float mz) {
+		return transform(new UMatrix().scale(mx, my, mz));
+	}
+
+	public UBufferMesh rotateX(float a) {
+		return transform(new UMatrix().rotateX(a));
+	}
+
+	public UBufferMesh rotateY(float a) {
+		return transform(new UMatrix().rotateY(a));
+	}
+
+	public UBufferMesh rotateZ(float a) {
+		return transform(new UMatrix().rotateZ(a));
+	}
+
+	private void calcNormals(final int first,int last) {
+		UParallel.run(last-first, new UParallel.Range() {
+			public void run(int start,int end) {
+				UMeshKernels.faceNormals(pos, tri, normal, first+start, first+end);
+			}
+		});
+	}
+
+	/////////////////////////////////////////////////////////
+	// MEASUREMENTS, OUTPUT
+
+	/**
+	 * Calculates bounding box of the vertices used by faces.
+	 */
+	public UBBox calcBounds() {
+		checkOpen();
+		UBBox bb=new UBBox();
+		if(faceNum==0) return bb;
+
+		final float res[]={Float.MAX_VALUE,Float.MAX_VALUE,Float.MAX_VALUE,
+				-Float.MAX_VALUE,-Float.MAX_VALUE,-Float.MAX_VALUE};
+		UParallel.run(faceNum, new UParallel.Range() {
+			public void run(int start,int end) {
+				float part[]=new float[6];
+				synchronized(res) {
+					System.arraycopy(res, 0, part, 0, 6);
+				}
+				UMeshKernels.bounds(pos, tri, start, end, part);
+				synchronized(res) {
+					for(int i=0; i<3; i++) {
+						if(part[i]<res[i]) res[i]=part[i];
+						if(part[i+3]>res[i+3]) res[i+3]=part[i+3];
+					}
+				}
+			}
+		});
+
+		bb.add(res[0],res[1],res[2]);
+		bb.add(res[3],res[4],res[5]);
+		return bb.finishCalc();
+	}
+
+	/**
+	 * Passes all triangles to a sink in chunks of
+	 * <code>UTriangleStream.chunkSize</code>, for instance to run them
+	 * through a stage or write them to a file.
+	 */
+	public void stream(UTriangleSink sink) throws IOException {
+		checkOpen();
+		int chunk=UTriangleStream.chunkSize;
+		float t[]=new float[chunk*9];
+
+		sink.begin();
+		for(int first=0; first<faceNum; first+=chunk) {
+			int n=Math.min(chunk, faceNum-first);
+			for(int i=0; i<n*3; i++) {
+				int id=tri.get(first*3+i)*3;
+				t[i*3]=pos.get(id);
+				t[i*3+1]=pos.get(id+1);
+				t[i*3+2]=pos.get(id+2);
+			}
+			sink.add(t, n);
+		}
+		sink.end();
+	}
+
+	/**
+	 * Output binary STL file.
+	 * @param p Reference to PApplet instance
+	 * @param filename Name of file to save to
+	 */
+	public void writeSTL(PApplet p,String filename) {
+		if(!filename.toLowerCase().endsWith("stl")) filename+=".stl";
+		USTLWriter out=new USTLWriter(new File(p.sketchPath(filename)));
+		try {
+			stream(out);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void draw(PApplet p) {
+		draw(p.g);
+	}
+
+	/**
+	 * Draws mesh with face normals, directly from the buffers.
+	 */
+	public void draw(PGraphics g) {
+		checkOpen();
+		boolean is2D=g.getClass().getSimpleName().equals("PGraphicsJava2D");
+
+		g.beginShape(PConstants.TRIANGLES);
+		for(int i=0; i<faceNum; i++) {
+			if(!is2D) g.normal(normal.get(i*3), normal.get(i*3+1), normal.get(i*3+2));
+
+			for(int j=0; j<3; j++) {
+				int id=tri.get(i*3+j)*3;
+				if(is2D) g.vertex(pos.get(id),pos.get(id+1));
+				else g.vertex(pos.get(id),pos.get(id+1),pos.get(id+2));
+			}
+		}
+		g.endShape();
+	}
+
+	/**
+	 * Off-heap memory used by the buffers, in bytes.
+	 */
+	public long memorySize() {
+		if(isClosed()) return 0;
+		return pos.capacity()*4l+tri.capacity()*4l+normal.capacity()*4l;
+	}
+
+	public String toString() {
+		return "UBufferMesh: f="+faceNum+" v="+vertNum+
+				(isClosed() ? " closed" : " "+(memorySize()>>20)+" MB");
+	}
+
+	/////////////////////////////////////////////////////////
+	// STORAGE
+
+	// A growable off-heap buffer, either direct or mapped to a file. The
+	// buffer replaced by grow() is not freed, since callers may still hold
+	// views of it. The garbage collector reclaims it once they are gone.
+	static class Block {
+		File file;
+		RandomAccessFile raf;
+		ByteBuffer buf;
+
+		Block(File file) {
+			this.file=file;
+		}
+
+		ByteBuffer grow(long size) {
+			if(size>Integer.MAX_VALUE)
+				throw new RuntimeException("UBufferMesh: buffer size over 2 GB.");
+
+			ByteBuffer old=buf;
+			try {
+				if(file==null) {
+					buf=ByteBuffer.allocateDirect((int)size);
+					if(old!=null) {
+						old.clear();
+						buf.put(old);
+						buf.clear();
+					}
+				}
+				else {
+					if(raf==null) {
+						raf=new RandomAccessFile(file, "rw");
+						raf.setLength(0);
+					}
+					// a larger mapping of the same file keeps the contents
+					buf=raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new RuntimeException("UBufferMesh: "+e.getMessage());
+			}
+
+			buf.order(ByteOrder.nativeOrder());
+			return buf;
+		}
+
+		void close(boolean delete) {
+			if(buf!=null) free(buf);
+			buf=null;
+			if(raf!=null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				raf=null;
+				if(delete) file.delete();
+			}
+		}
+	}
+
+	private static Object unsafe;
+	private static Method invokeCleaner;
+
+	// Frees a direct or mapped buffer right away, using
+	// sun.misc.Unsafe.invokeCleaner() where available (Java 9 and later).
+	// Otherwise the memory is freed when the buffer is garbage collected.
+	static void free(ByteBuffer buf) {
+		try {
+			if(invokeCleaner==null) {
+				Class<?> c=Class.forName("sun.misc.Unsafe");
+				java.lang.reflect.Field f=c.getDeclaredField("theUnsafe");
+				f.setAccessible(true);
+				unsafe=f.get(null);
+				invokeCleaner=c.getMethod("invokeCleaner", ByteBuffer.class);
+			}
+			invokeCleaner.invoke(unsafe, buf);
+		} catch (Exception e) {
+			// not available, leave it to the garbage collector
+		}
+	}
+}
@@ -0,0 +1,382 @@
+package unlekker.modelbuilder;
+
+import unlekker.util.*;
+
+/**
+ * Compact triangle mesh stored as flat arrays instead of objects. Vertex
+ * positions are packed as x,y,z triplets in <code>pos</code> and each
+ * triangle is three vertex indices in <code>tri</code>. Face normals and
+ * face colors are optional channels, <code>null</code> until used.
+ * <p>
+ * A {@link UGeometry} switches to this representation with
+ * <code>compact()</code>, which stores a million-triangle mesh in a few
+ * arrays rather than millions of UVec3 and UFace objects. Transformations
+ * are applied directly to the arrays, and give exactly the same results as
+ * the equivalent UVec3 methods.
+ * <p>
+ * The arrays can be shared with {@link UGeometrySnapshot} objects. Methods
+ * that change existing entries copy the arrays first, so snapshots are 
+ * never affected. Code that writes to the arrays directly should call 
+ * <code>unshare()</code> before doing so.
+ */
+public class UCompactMesh {
+	/**
+	 * Vertex positions, 3 floats per vertex.
+	 */
+	public float pos[];
+	/**
+	 * Triangle vertex indices, 3 ints per face.
+	 */
+	public int tri[];
+	/**
+	 * Face normals, 3 floats per face. Optional, may be <code>null</code>.
+	 */
+	public float normal[];
+	/**
+	 * Face colors, 1 int per face. Optional, may be <code>null</code>.
+	 */
+	public int col[];
+
+	public int vertNum,faceNum;
+
+	// Copy-on-write state. SHARED: snapshots read the first vertNum and 
+	// faceNum entries, so appending is safe but changing them in place is
+	// not. BORROWED: the arrays belong to a snapshot, any change copies.
+	static final int OWNED=0,SHARED=1,BORROWED=2;
+	int share=OWNED;
+
+	public UCompactMesh() {
+		this(100,100);
+	}
+
+	/**
+	 * Creates empty mesh with room for the given number of vertices and faces.
+	 */
+	public UCompactMesh(int vertCapacity,int faceCapacity) {
+		pos=new float[Math.max(vertCapacity,1)*3];
+		tri=new int[Math.max(faceCapacity,1)*3];
+	}
+
+	/**
+	 * Creates a copy of another mesh.
+	 */
+	public UCompactMesh(UCompactMesh m) {
+		vertNum=m.vertNum;
+		faceNum=m.faceNum;
+		pos=copy(m.pos,vertNum*3);
+		tri=copy(m.tri,faceNum*3);
+		if(m.normal!=null) normal=copy(m.normal,faceNum*3);
+		if(m.col!=null) col=copy(m.col,faceNum);
+	}
+
+	/**
+	 * Builds compact mesh from the faces of a UGeometry object. Vertex IDs
+	 * are kept, so the vertex order is the same as in <code>g.vert</code>.
+	 */
+	public UCompactMesh(UGeometry g) {
+		this(g.vert.n,g.faceNum);
+
+		UVec3 v[]=g.vert.v;
+		for(int i=0; i<g.vert.n; i++) addVertex(v[i].x,v[i].y,v[i].z);
+
+		boolean hasColor=false;
+		for(int i=0; i<g.faceNum && !hasColor; i++) if(g.face[i].c!=0) hasColor=true;
+
+		normal=new float[tri.length];
+		if(hasColor) col=new int[tri.length/3];
+
+		for(int i=0; i<g.faceNum; i++) {
+			UFace f=g.face[i];
+			tri[i*3]=f.vid[0];
+			tri[i*3+1]=f.vid[1];
+			tri[i*3+2]=f.vid[2];
+
+			UVec3 n=f.getNormal();
+			normal[i*3]=n.x;
+			normal[i*3+1]=n.y;
+			normal[i*3+2]=n.z;
+
+			if(hasColor) col[i]=f.c;
+		}
+		faceNum=g.faceNum;
+	}
+
+	/**
+	 * Adds vertex and returns its index.
+	 */
+	public int addVertex(float x,float y,float z) {
+		if(share==BORROWED) unshare();
+		if(pos.length<(vertNum+1)*3) pos=UUtil.expandArray(pos);
+		int id=vertNum*3;
+		pos[id++]=x;
+		pos[id++]=y;
+		pos[id]=z;
+		return vertNum++;
+	}
+
+	/**
+	 * Adds triangle from three vertex indices and returns its index. If
+	 * the mesh has normals the new face normal is calculated.
+	 */
+	public int addFace(int v1,int v2,int v3) {
+		if(share==BORROWED) unshare();
+		if(tri.length<(faceNum+1)*3) {
+			tri=UUtil.expandArray(tri);
+			if(normal!=null) normal=UUtil.resizeArrayFloat(normal, tri.length);
+			if(col!=null) col=UUtil.resizeArrayInt(col, tri.length/3);
+		}
+
+		int id=faceNum*3;
+		tri[id++]=v1;
+		tri[id++]=v2;
+		tri[id]=v3;
+		if(normal!=null) calcNormal(faceNum);
+		return faceNum++;
+	}
+
+	/**
+	 * Adds triangle from three UVec3 vertices, which are copied.
+	 */
+	public int addFace(UVec3 v1,UVec3 v2,UVec3 v3) {
+		int id=addVertex(v1.x,v1.y,v1.z);
+		addVertex(v2.x,v2.y,v2.z);
+		addVertex(v3.x,v3.y,v3.z);
+		return addFace(id,id+1,id+2);
+	}
+
+	/**
+	 * Appends all vertices and faces of another compact mesh, offsetting
+	 * its triangle indices. Normals and colors are copied where both meshes 
+	 * have them.
+	 */
+	public UCompactMesh add(UCompactMesh m) {
+		int offset=vertNum;
+		ensureCapacity(vertNum+m.vertNum, faceNum+m.faceNum);
+		
+		System.arraycopy(m.pos, 0, pos, vertNum*3, m.vertNum*3);
+		vertNum+=m.vertNum;
+		
+		int start=faceNum*3,end=start+m.faceNum*3;
+		for(int i=start,j=0; i<end; i++,j++) tri[i]=m.tri[j]+offset;
+		
+		if(normal!=null) {
+			if(m.normal!=null) System.arraycopy(m.normal, 0, normal, start, m.faceNum*3);
+			else for(int i=0; i<m.faceNum; i++) calcNormal(faceNum+i);
+		}
+		if(m.col!=null) {
+			if(col==null) col=new int[tri.length/3];
+			System.arraycopy(m.col, 0, col, faceNum, m.faceNum);
+		}
+		
+		faceNum+=m.faceNum;
+		return this;
+	}
+	
+	/**
+	 * Makes room for the given total number of vertices and faces, at 
+	 * least doubling the arrays when they have to grow.
+	 */
+	public UCompactMesh ensureCapacity(int vn,int fn) {
+		if(share==BORROWED) unshare();
+		if(pos.length<vn*3) pos=UUtil.resizeArrayFloat(pos, Math.max(pos.length*2, vn*3));
+		if(tri.length<fn*3) {
+			tri=UUtil.resizeArrayInt(tri, Math.max(tri.length*2, fn*3));
+			if(normal!=null) normal=UUtil.resizeArrayFloat(normal, tri.length);
+			if(col!=null) col=UUtil.resizeArrayInt(col, tri.length/3);
+		}
+		return this;
+	}
+
+	public UCompactMesh reset() {
+		if(share!=OWNED) {
+			// don't copy data that is about to be overwritten
+			pos=new float[pos.length];
+			tri=new int[tri.length];
+			if(normal!=null) normal=new float[normal.length];
+			if(col!=null) col=new int[col.length];
+			share=OWNED;
+		}
+		vertNum=0;
+		faceNum=0;
+		return this;
+	}
+
+	/**
+	 * Calculates all face normals, creating the normal channel if needed.
+	 */
+	public UCompactMesh calcNormals() {
+		if(normal!=null) unshare();
+		if(normal==null || normal.length<tri.length) normal=new float[tri.length];
+		UParallel.run(faceNum, new UParallel.Range() {
+			public void run(int start,int end) {
+				UMeshKernels.faceNormals(pos, tri, normal, start, end);
+			}
+		});
+		return this;
+	}
+
+	/**
+	 * Calculates normal of face <code>id</code> the same way as
+	 * {@link UFace#calcNormal()}.
+	 */
+	public void calcNormal(int id) {
+		if(id<faceNum || share==BORROWED) unshare();
+		UMeshKernels.faceNormals(pos, tri, normal, id, id+1);
+	}
+
+	/**
+	 * Copies vertex <code>id</code> into v, creating v if it is null.
+	 */
+	public UVec3 getVertex(int id,UVec3 v) {
+		if(v==null) v=new UVec3();
+		id*=3;
+		return v.set(pos[id],pos[id+1],pos[id+2]);
+	}
+
+	/////////////////////////////////////////////////////////
+	// TRANSFORMATIONS
+	// See UMeshKernels for the arithmetic and UParallel for threading
+
+	/**
+	 * Applies an affine transformation matrix to all vertices in one pass.
+	 */
+	public UCompactMesh transform(UMatrix m) {
+		unshare();
+		m.apply(pos,vertNum);
+		if(normal!=null) calcNormals();
+		return this;
+	}
+
+	public UCompactMesh translate(final float x,final float y,final float z) {
+		unshare();
+		UParallel.run(vertNum, new UParallel.Range() {
+			public void run(int start,int end) {
+				UMeshKernels.translate(pos, start, end, x, y, z);
+			}
+		});
+		return this;
+	}
+
+	public UCompactMesh scale(final float mx,final float my,final float mz) {
+		unshare();
+		UParallel.run(vertNum, new UParallel.Range() {
+			public void run(int start,int end) {
+				UMeshKernels.scale(pos, start, end, mx, my, mz);
+			}
+		});
+		if(normal!=null) calcNormals();
+		return this;
+	}
+
+	public UCompactMesh rotateX(float a) {
+		rotate(a,1,2);
+		return this;
+	}
+
+	public UCompactMesh rotateY(float a) {
+		rotate(a,0,2);
+		return this;
+	}
+
+	public UCompactMesh rotateZ(float a) {
+		rotate(a,0,1);
+		return this;
+	}
+
+	private void rotate(final float a,final int u,final int v) {
+		unshare();
+		UParallel.run(vertNum, new UParallel.Range() {
+			public void run(int start,int end) {
+				UMeshKernels.rotate(pos, start, end, a, u, v);
+			}
+		});
+		if(normal!=null) calcNormals();
+	}
+
+	/**
+	 * Gives the mesh its own copy of the arrays if they are shared with a
+	 * snapshot. Called by every method that changes existing entries. 
+	 */
+	public UCompactMesh unshare() {
+		if(share==OWNED) return this;
+		pos=pos.clone();
+		tri=tri.clone();
+		if(normal!=null) normal=normal.clone();
+		if(col!=null) col=col.clone();
+		share=OWNED;
+		return this;
+	}
+
+	/////////////////////////////////////////////////////////
+	// MEASUREMENTS
+
+	/**
+	 * Adds the vertices used by faces to a bounding box.
+	 */
+	public void addToBounds(UBBox bb) {
+		if(faceNum==0) return;
+		final float res[]={bb.min.x,bb.min.y,bb.min.z,bb.max.x,bb.max.y,bb.max.z};
+		
+		UParallel.run(faceNum, new UParallel.Range() {
+			public void run(int start,int end) {
+				float part[]=new float[6];
+				synchronized(res) {
+					System.arraycopy(res, 0, part, 0, 6);
+				}
+				UMeshKernels.bounds(pos, tri, start, end, part);
+				synchronized(res) {
+					for(int i=0; i<3; i++) {
+						if(part[i]<res[i]) res[i]=part[i];
+						if(part[i+3]>res[i+3]) res[i+3]=part[i+3];
+					}
+				}
+			}
+		});
+		
+		bb.add(res[0],res[1],res[2]);
+		bb.add(res[3],res[4],res[5]);
+	}
+
+	/**
+	 * Total surface area, calculated with the same formula as
+	 * {@link UGeometry#triangleArea(UVec3, UVec3, UVec3)}.
+	 */
+	public float surfaceArea() {
+		float val=0;
+		for(int i=0; i<faceNum; i++) {
+			int id1=tri[i*3]*3,id2=tri[i*3+1]*3,id3=tri[i*3+2]*3;
+			float a=UVec3.dist(pos[id1],pos[id1+1],pos[id1+2],pos[id2],pos[id2+1],pos[id2+2]);
+			float b=UVec3.dist(pos[id1],pos[id1+1],pos[id1+2],pos[id3],pos[id3+1],pos[id3+2]);
+			float c=UVec3.dist(pos[id2],pos[id2+1],pos[id2+2],pos[id3],pos[id3+1],pos[id3+2]);
+			float p=(a+b+c)*0.5f;
+			val+=(float)Math.sqrt(p*(p-a)*(p-b)*(p-c));
+		}
+		return val;
+	}
+
+	/**
+	 * Approximate memory used by the arrays, in bytes.
+	 */
+	public long memorySize() {
+		long size=pos.length*4l+tri.length*4l;
+		if(normal!=null) size+=normal.length*4l;
+		if(col!=null) size+=col.length*4l;
+		return size;
+	}
+
+	public String toString() {
+		return "UCompactMesh: f="+faceNum+" v="+vertNum;
+	}
+
+	private static float[] copy(float f[],int n) {
+		float res[]=new float[Math.max(n,3)];
+		System.arraycopy(f, 0, res, 0, n);
+		return res;
+	}
+
+	private static int[] copy(int f[],int n) {
+		int res[]=new int[Math.max(n,3)];
+		System.arraycopy(f, 0, res, 0, n);
+		return res;
+	}
+}
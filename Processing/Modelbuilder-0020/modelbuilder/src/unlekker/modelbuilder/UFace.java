@@ -4,10 +4,18 @@ import processing.core.PApplet;
 import unlekker.util.*;
 
 public class UFace implements UConstants, Comparable<UFace> {
+	/**
+	 * Face normal and centroid are calculated on demand and may be 
+	 * <code>null</code> or out of date. Use <code>getNormal()</code> and 
+	 * <code>getCentroid()</code> to read them.
+	 */
 	public UVec3 v[],mid[],n,centroid;	
 	public int c,vid[];
 	public UGeometry parent;
 	
+	// parent modCount when n and centroid were last calculated
+	private int nMod=-1,centroidMod=-1;
+	
 	/**
 	 * Data (angles and translation used to flatten polygon, provided to make
 	 * it possible to "unflatten" the face.
@@ -42,8 +50,30 @@ public class UFace implements UConstants, Comparable<UFace> {
 		parent=_parent;
 		vid=new int[]{id[0],id[1],id[2]};
 		getVertices();
-		calcNormal();
-		calcCentroid();
+	}
+
+	/**
+	 * Constructor for copying a face into a {@link UGeometry} instance 
+	 * whose vertices have already been copied. Takes the vertex IDs of 
+	 * <code>f</code> plus an offset, and copies its normal and centroid
+	 * if they are up to date, as well as its color.
+	 * @param _parent
+	 * @param f Face to copy
+	 * @param offset Added to the vertex IDs of <code>f</code>
+	 */
+	public UFace(UGeometry _parent,UFace f,int offset) {
+		parent=_parent;
+		vid=new int[]{f.vid[0]+offset,f.vid[1]+offset,f.vid[2]+offset};
+		getVertices();
+		if(f.hasNormal()) {
+			n=new UVec3(f.n);
+			nMod=parent.modCount;
+		}
+		if(f.hasCentroid()) {
+			centroid=new UVec3(f.centroid);
+			centroidMod=parent.modCount;
+		}
+		c=f.c;
 	}
 
 	/**
@@ -58,8 +88,6 @@ public class UFace implements UConstants, Comparable<UFace> {
 		v[0].set(fv1);
 		v[1].set(fv2);
 		v[2].set(fv3);
-		calcNormal();
-		calcCentroid();
 	}
 
 /*	public void setVertexColor(int c1,int c2,int c3) {
@@ -108,9 +136,13 @@ public class UFace implements UConstants, Comparable<UFace> {
 	public UFace rotateX(float a) {
 		if(parent!=null) {
 			for(int i=0; i<v.length; i++) parent.vert.v[vid[i]].rotateX(a);
+			parent.vert.reindex();
+			parent.changed();
 		}
 		else {
 			for(int i=0; i<3; i++) v[i].rotateX(a);
+			n=null;
+			centroid=null;
 		}
 		return this;
 	}
@@ -118,9 +150,13 @@ public class UFace implements UConstants, Comparable<UFace> {
 	public UFace rotateY(float a) {
 		if(parent!=null) {
 			for(int i=0; i<v.length; i++) parent.vert.v[vid[i]].rotateY(a);
+			parent.vert.reindex();
+			parent.changed();
 		}
 		else {
 			for(int i=0; i<3; i++) v[i].rotateY(a);
+			n=null;
+			centroid=null;
 		}
 		return this;
 	}
@@ -128,9 +164,13 @@ public class UFace implements UConstants, Comparable<UFace> {
 	public UFace rotateZ(float a) {
 		if(parent!=null) {
 			for(int i=0; i<v.length; i++) parent.vert.v[vid[i]].rotateZ(a);
+			parent.vert.reindex();
+			parent.changed();
 		}
 		else {
 			for(int i=0; i<3; i++) v[i].rotateZ(a);
+			n=null;
+			centroid=null;
 		}
 		return this;
 	}
@@ -243,6 +283,8 @@ public class UFace implements UConstants, Comparable<UFace> {
 	public UFace translate(float x,float y,float z) {
 		if(parent!=null) {
 			for(int i=0; i<v.length; i++) parent.vert.v[vid[i]].add(x,y,z);
+			parent.vert.reindex();
+			parent.changed();
 		}
 		else {
 			for(int i=0; i<3; i++) v[i].add(x,y,z);
@@ -265,9 +307,12 @@ public class UFace implements UConstants, Comparable<UFace> {
 	public UFace scale(float mx,float my,float mz) {
 		if(parent!=null) {
 			for(int i=0; i<v.length; i++) parent.vert.v[vid[i]].mult(mx,my,mz);
+			parent.vert.reindex();
+			parent.changed();
 		}
 		else {
 			for(int i=0; i<3; i++) v[i].mult(mx,my,mz);
+			n=null;
 		}
 		
 		if(centroid!=null) centroid.mult(mx,my,mz);
@@ -297,6 +342,7 @@ public class UFace implements UConstants, Comparable<UFace> {
 		
 		for(int i=0; i<v.length; i++) centroid.add(v[i]);
 		centroid.div(v.length);
+		if(parent!=null) centroidMod=parent.modCount;
 		
 		return centroid;
 	}
@@ -324,8 +370,37 @@ public class UFace implements UConstants, Comparable<UFace> {
 		n=UVec3.crossProduct(
 				v[1].x-v[0].x,v[1].y-v[0].y,v[1].z-v[0].z,
   			v[2].x-v[0].x,v[2].y-v[0].y,v[2].z-v[0].z).norm();
+		if(parent!=null) nMod=parent.modCount;
+		return n;
+	}
+	
+	/**
+	 * Returns the face normal, calculating it only if it hasn't been 
+	 * calculated yet or the parent geometry has changed since.
+	 * @return
+	 */
+	public UVec3 getNormal() {
+		if(!hasNormal()) calcNormal();
 		return n;
 	}
+
+	/**
+	 * Returns the face centroid, calculating it only if it hasn't been 
+	 * calculated yet or the parent geometry has changed since.
+	 * @return
+	 */
+	public UVec3 getCentroid() {
+		if(!hasCentroid()) calcCentroid();
+		return centroid;
+	}
+	
+	boolean hasNormal() {
+		return n!=null && (parent==null || nMod==parent.modCount);
+	}
+	
+	boolean hasCentroid() {
+		return centroid!=null && (parent==null || centroidMod==parent.modCount);
+	}
 	
 	public UFace setColor(int col) {
 	  this.c=col;
@@ -367,6 +442,8 @@ public class UFace implements UConstants, Comparable<UFace> {
 	}
 
 	public void drawNormal(PApplet p,float m) {
+		getNormal();
+		getCentroid();
 		p.line(centroid.x,centroid.y,centroid.z, 
 				centroid.x+n.x*m,centroid.y+n.y*m,centroid.z+n.z*m);
 	}
@@ -25,10 +25,12 @@ import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
 
 import processing.core.PApplet;
 import processing.core.PConstants;
 import processing.core.PGraphics;
+import processing.core.PShape;
 import unlekker.util.*;
 
 public class UGeometry implements UConstants {
@@ -80,6 +82,57 @@ public class UGeometry implements UConstants {
 	public float w,d,h;
 	private UStrip shapeRecord;
 	
+	/**
+	 * Compact array-based storage of the mesh, used instead of the 
+	 * <code>face</code> and <code>vert</code> objects while the geometry is 
+	 * compact. See {@link #compact()}.
+	 */
+	public UCompactMesh mesh;
+	
+	/**
+	 * Modification counter. Incremented by every method that changes the 
+	 * geometry, so that cached data can tell whether it is still valid. Code 
+	 * that changes <code>face</code> or <code>vert</code> directly should call 
+	 * {@link #changed()}, or {@link #topologyChanged()} if it rewrites
+	 * vertex IDs or replaces faces.
+	 */
+	public int modCount;
+	/**
+	 * If true, <code>draw()</code> builds a retained PShape the first time it is 
+	 * called and redraws it until the geometry is changed. 
+	 * See {@link #useShapeCache()}.
+	 */
+	public boolean doShapeCache=false;
+	private PShape shape;
+	private PGraphics shapeG;
+	private int shapeMod,shapeOpt;
+	
+	/**
+	 * If true, transformations are collected in a matrix and applied to all
+	 * vertices in a single pass when the geometry is next used. 
+	 * See {@link #deferTransforms()}.
+	 */
+	public boolean doDeferTransforms=false;
+	private UMatrix pending,op;
+	// bounding box before the pending transformations, see defer()
+	private UBBox pendingBB;
+	
+	// modCount at which bounds, face normals and surface area were last 
+	// calculated. Used by the cached getBounds(), updateFaceNormals() and
+	// getSurfaceArea(), while calcBounds(), calcFaceNormals() and
+	// surfaceArea() always recalculate.
+	private int bbMod=-1,normalMod=-1,areaMod=-1;
+	private float area;
+	
+	// incremented when faces are removed or vertex IDs change, as opposed 
+	// to faces being appended. Used by UAdjacency to decide whether it can 
+	// update incrementally.
+	int topoMod;
+	private UAdjacency adjacency;
+	private UBVH bvh;
+	private int bvhMod,bvhTopo;
+	private UGeometrySnapshot snapshot;
+	
 	/** 
 	 * Create unnamed instance.
 	 */
@@ -117,16 +170,86 @@ public class UGeometry implements UConstants {
 		for(int i=0; i<g.length; i++) if(g[i]!=null) g[i].draw(p);
 	}
 	
+	/**
+	 * Switches to compact storage. Vertices and faces are moved into a 
+	 * {@link UCompactMesh} of packed arrays and the UVec3 and UFace objects are 
+	 * released, which cuts memory use for large meshes to a fraction. Drawing,
+	 * transformations, bounds, surface area, adding triangles and STL export 
+	 * work directly on the compact mesh. Other methods call {@link #expand()} 
+	 * first.
+	 * <p>
+	 * While compact <code>face</code> is <code>null</code> and <code>vert</code>
+	 * is empty. Code that reads them directly must call <code>expand()</code>
+	 * first. Quad and strip records are discarded.
+	 * @return
+	 */
+	public UGeometry compact() {
+		flushTransforms();
+		if(mesh!=null) return this;
+		
+		mesh=new UCompactMesh(this);
+		face=null;
+		vert=new UVertexList();
+		quadNum=0;
+		stripNum=0;
+		changed();
+		return this;
+	}
+
+	/**
+	 * Replaces the contents of this geometry with a compact mesh, which is
+	 * used as is rather than copied.
+	 */
+	void setMesh(UCompactMesh m) {
+		mesh=null; // discarded, so reset() needn't clear it
+		reset();
+		mesh=m;
+		face=null;
+		faceNum=m.faceNum;
+		changed();
+	}
+
+	/**
+	 * Switches from compact storage back to UFace and UVec3 objects, 
+	 * recreating <code>face</code> and <code>vert</code> from the compact 
+	 * mesh. Does nothing if the geometry isn't compact.
+	 * @return
+	 */
+	public UGeometry expand() {
+		flushTransforms();
+		if(mesh==null) return this;
+		
+		UCompactMesh m=mesh;
+		mesh=null;
+		
+		vert=new UVertexList();
+		if(doNoDuplicates) vert.doNoDuplicates=true;
+		vert.v=new UVec3[Math.max(m.vertNum,1)];
+		for(int i=0; i<m.vertNum; i++) vert.v[i]=m.getVertex(i, null);
+		vert.n=m.vertNum;
+		
+		face=new UFace[Math.max(m.faceNum,1)];
+		int id[]=new int[3];
+		for(int i=0; i<m.faceNum; i++) {
+			id[0]=m.tri[i*3];
+			id[1]=m.tri[i*3+1];
+			id[2]=m.tri[i*3+2];
+			face[i]=new UFace(this,id);
+			if(m.col!=null) face[i].c=m.col[i];
+		}
+		faceNum=m.faceNum;
+		
+		changed();
+		return this;
+	}
+
 	public void drawFaceNormals(PApplet p,float len) {
+		expand();
 		p.beginShape(p.LINES);
 		for(int i=0; i<faceNum; i++) {
-			if(face[i].n==null) face[i].calcNormal(); 
-			if(face[i].centroid==null) face[i].calcCentroid(); 
-			p.vertex(face[i].centroid.x,face[i].centroid.y,face[i].centroid.z);
-			p.vertex(
-					face[i].centroid.x+face[i].n.x*len,
-					face[i].centroid.y+face[i].n.y*len,
-					face[i].centroid.z+face[i].n.z*len);
+			UVec3 n=face[i].getNormal(),c=face[i].getCentroid(); 
+			p.vertex(c.x,c.y,c.z);
+			p.vertex(c.x+n.x*len,c.y+n.y*len,c.z+n.z*len);
 		}
 		p.endShape();
 	}
@@ -137,10 +260,16 @@ public class UGeometry implements UConstants {
 	 * @param _g
 	 */
 	public void set(UGeometry _g) {
+		_g.flushTransforms();
 		reset();
 		name=_g.name;
 
-		if(_g.faceNum>0) {
+		if(_g.mesh!=null) {
+			mesh=new UCompactMesh(_g.mesh);
+			faceNum=mesh.faceNum;
+			face=null;
+		}
+		else if(_g.faceNum>0) {
 			for(int i=0; i<_g.faceNum; i++) addFace(_g.face[i].getVertices());
 			if(_g.bb!=null) calcBounds();
 		}
@@ -156,6 +285,10 @@ public class UGeometry implements UConstants {
 	 * Resets geometry to empty.
 	 */	
 	public void reset() {
+		changed();
+		topoMod++;
+		pending=null;
+		pendingBB=null;
 		faceNum=0;
 		vln=0;
 		bb=null;
@@ -163,6 +296,7 @@ public class UGeometry implements UConstants {
     quadNum=0;
     stripNum=0;
     vert.reset();
+    if(mesh!=null) mesh.reset();
 	}
 
 	/**
@@ -593,8 +727,19 @@ public class UGeometry implements UConstants {
 		int type=TRIANGLE;
 		if(vv.length==4) type=QUAD;
 		
+		flushTransforms();
+		if(mesh!=null) {
+			if(type==TRIANGLE && !doNoDuplicates) {
+				changed();
+				faceNum=mesh.addFace(vv[0],vv[1],vv[2])+1;
+				return faceNum-1;
+			}
+			expand();
+		}
+		
 		int id[]=addVerticesToMasterList(vv);
 //		UUtil.log(UUtil.toString(vv)+" "+UUtil.toString(id));
+		changed();
 		
 		if(type==TRIANGLE) {
 			if(face==null) face=new UFace[100];
@@ -620,6 +765,7 @@ public class UGeometry implements UConstants {
 	 * @return
 	 */
 	public UGeometry addVertexList(UVertexList vv) {
+		flushTransforms();
 		if(vl==null) vl=new UVertexList[10];
 		else if(vln==vl.length) vl=(UVertexList[])UUtil.expandArray(vl);
 		vl[vln++]=vv;
@@ -637,6 +783,9 @@ public class UGeometry implements UConstants {
 	}
 	
 	public UGeometry flatten(float rowW) {
+		expand();
+		changed();
+		vert.reindex();
 		for(int i=0; i<faceNum; i++) face[i].flatten2();
 		
 		if(rowW<0) return this;
@@ -667,32 +816,169 @@ public class UGeometry implements UConstants {
 		
 	}
 	
+	/**
+	 * Turns on caching of the geometry as a retained PShape, so that 
+	 * drawing an unchanged mesh is a single <code>shape()</code> call 
+	 * instead of resubmitting every face. The cache is rebuilt whenever 
+	 * <code>modCount</code> has changed. Only used with 3D renderers.
+	 * @return
+	 */
+	public UGeometry useShapeCache() {
+		doShapeCache=true;
+		return this;
+	}
+	
+	/**
+	 * Returns the adjacency index for the faces of this geometry, building
+	 * it on first use. Faces added since the last call are indexed 
+	 * incrementally. See {@link UAdjacency}. 
+	 * @return
+	 */
+	public UAdjacency getAdjacency() {
+		if(adjacency==null) adjacency=new UAdjacency(this);
+		else adjacency.update(this);
+		return adjacency;
+	}
+
+	/**
+	 * Returns a bounding volume hierarchy for ray casting and picking, see
+	 * {@link UBVH}. Built on first use, refitted if vertices have moved 
+	 * since the last call and rebuilt if faces were added or removed. 
+	 * @return
+	 */
+	public UBVH getBVH() {
+		flushTransforms();
+		if(bvh==null || bvhTopo!=topoMod || bvh.faceNum!=faceNum) bvh=new UBVH(this);
+		else if(bvhMod!=modCount) bvh.refit(this);
+		bvhMod=modCount;
+		bvhTopo=topoMod;
+		return bvh;
+	}
+
+	/**
+	 * Returns an immutable snapshot of the geometry, which other threads can
+	 * read while this one keeps changing it. See {@link UGeometrySnapshot}.
+	 * For compact geometry the snapshot shares the mesh arrays and is 
+	 * created in O(1), otherwise the faces are packed into a compact mesh.
+	 * The same snapshot is returned until <code>modCount</code> changes.
+	 * @return
+	 */
+	public UGeometrySnapshot getSnapshot() {
+		flushTransforms();
+		if(snapshot!=null && snapshot.modCount==modCount) return snapshot;
+		
+		UCompactMesh m=(mesh!=null ? mesh : new UCompactMesh(this));
+		snapshot=new UGeometrySnapshot(m, modCount);
+		return snapshot;
+	}
+
+	/**
+	 * Flags the geometry as changed, invalidating cached data such as the
+	 * PShape used by <code>draw()</code>. 
+	 * @return
+	 */
+	public UGeometry changed() {
+		modCount++;
+		return this;
+	}
+
+	/**
+	 * Flags the faces as rearranged, as opposed to moved or appended. Code
+	 * that rewrites <code>UFace.vid</code> or replaces entries in 
+	 * <code>face</code> directly must call this, otherwise indexes that are
+	 * updated incrementally (see {@link #getAdjacency()} and 
+	 * {@link #getBVH()}) can return stale results while the face count is 
+	 * unchanged. Also calls <code>changed()</code>.
+	 * @return
+	 */
+	public UGeometry topologyChanged() {
+		topoMod++;
+		return changed();
+	}
+	
+	/**
+	 * Removes faces that use the same three vertices as an earlier face, in 
+	 * any order. Vertices are compared by position at the resolution of 
+	 * {@link UVec3#equals(UVec3)}, so faces match even if their vertices 
+	 * were not welded. Each face is reduced to a sorted key and looked up in a 
+	 * hash table, and the remaining faces are compacted in place, keeping 
+	 * their order and vertex IDs. 
+	 */
 	public void removeDuplicateFaces() {
-		boolean ok;
+		expand();
 		int dupes=0;
+		if(faceNum<2) return;
 		
-		for(int i=1; i<faceNum; i++) {
-			for(int j=i; j<faceNum; j++) {
-				if(i!=j && face[j]!=null && face[i]!=null &&
-						face[i].compareTo(face[j])==0) {
-//					UUtil.log("Duplicate found."+face[j].toString());
-					dupes++;
-					face[j]=null;
-//					face[j].translate(0, 0, UUtil.rnd.random(-100, 100));
-				}
+		// key[i*9..i*9+8] holds the quantized vertices of face i, sorted 
+		int key[]=new int[faceNum*9];
+		int tableSize=4;
+		while(tableSize<faceNum*2) tableSize*=2;
+		int table[]=new int[tableSize],mask=tableSize-1;
+		for(int i=0; i<tableSize; i++) table[i]=-1;
+		
+		int kept=0;
+		for(int i=0; i<faceNum; i++) {
+			UFace f=face[i];
+			f.getVertices();
+			
+			int k=kept*9;
+			faceKey(f.v,key,k);
+			
+			int h=0;
+			for(int j=0; j<9; j++) h=h*31+key[k+j];
+			h=(h ^ (h>>>16)) & mask;
+			
+			boolean found=false;
+			while(table[h]!=-1) {
+				int other=table[h]*9;
+				found=true;
+				for(int j=0; j<9 && found; j++) if(key[other+j]!=key[k+j]) found=false;
+				if(found) break;
+				h=(h+1) & mask;
+			}
+			
+			if(found) dupes++;
+			else {
+				table[h]=kept;
+				face[kept++]=f;
 			}
 		}
 		
-		ArrayList<UFace> ff=new ArrayList<UFace>();
+		for(int i=kept; i<faceNum; i++) face[i]=null;
+		faceNum=kept;
+		changed();
+		topoMod++;
 		
-		for(int i=0; i<faceNum; i++) {
-			if(face[i]!=null) ff.add(face[i]);
+		UUtil.log("Duplicates found: "+dupes);
+	}
+	
+	private static void faceKey(UVec3 v[],int key[],int k) {
+		for(int i=0; i<3; i++) {
+			key[k+i*3]=(int)(v[i].x*10000);
+			key[k+i*3+1]=(int)(v[i].y*10000);
+			key[k+i*3+2]=(int)(v[i].z*10000);
 		}
-
-		faceNum=0;
-		for(UFace newf:ff) add(newf); 
 		
-		UUtil.log("Duplicates found: "+dupes);//face[j].toString());
+		// sort the three vertices, so that the key doesn't depend on order
+		if(keyCompare(key,k,k+3)>0) keySwap(key,k,k+3);
+		if(keyCompare(key,k+3,k+6)>0) keySwap(key,k+3,k+6);
+		if(keyCompare(key,k,k+3)>0) keySwap(key,k,k+3);
+	}
+	
+	private static int keyCompare(int key[],int a,int b) {
+		for(int i=0; i<3; i++) {
+			if(key[a+i]<key[b+i]) return -1;
+			if(key[a+i]>key[b+i]) return 1;
+		}
+		return 0;
+	}
+	
+	private static void keySwap(int key[],int a,int b) {
+		for(int i=0; i<3; i++) {
+			int tmp=key[a+i];
+			key[a+i]=key[b+i];
+			key[b+i]=tmp;
+		}
 	}
 	
 
@@ -703,10 +989,33 @@ public class UGeometry implements UConstants {
 		
 	/**
 	 * Adds all the faces of a UGeometry instance. The faces is copied and the original instance is left unchanged. 
+	 * <p>
+	 * Unless duplicate vertices are being removed the vertex list of 
+	 * <code>g</code> is copied in one block and its faces are added with offset 
+	 * vertex IDs, keeping their normals, centroids and colors. 
 	 * @param g UGeometry to add
 	 * @return
 	 */
 	public UGeometry add(UGeometry g) {
+		if(g.faceNum==0) return this;
+		
+		flushTransforms();
+		g.flushTransforms();
+		if(!doNoDuplicates) {
+			if(mesh!=null) addBulkCompact(g);
+			else addBulk(g);
+			return this;
+		}
+		
+		if(g.mesh!=null) {
+			UCompactMesh m=g.mesh;
+			UVec3 vv[]=UVec3.getVec3(3);
+			for(int i=0; i<m.faceNum; i++) {
+				for(int j=0; j<3; j++) m.getVertex(m.tri[i*3+j], vv[j]);
+				addFace(vv);
+			}
+			return this;
+		}
 		
 		int added[]=new int[g.faceNum];
 		for(int i=0; i<g.faceNum; i++) added[i]=-1;
@@ -735,6 +1044,70 @@ public class UGeometry implements UConstants {
 		return this;
 	}
 	
+	// Bulk add into object storage
+	private void addBulk(UGeometry g) {
+		changed();
+		int offset=vert.n;
+		if(face==null) face=new UFace[Math.max(100,g.faceNum)];
+		if(face.length<faceNum+g.faceNum) 
+			face=(UFace[])UUtil.expandArray(face, Math.max(face.length*2, faceNum+g.faceNum));
+		
+		if(g.mesh!=null) {
+			UCompactMesh m=g.mesh;
+			UVec3 vv[]=new UVec3[m.vertNum];
+			for(int i=0; i<m.vertNum; i++) vv[i]=m.getVertex(i, null);
+			vert.addAll(vv, m.vertNum);
+			
+			int id[]=new int[3];
+			for(int i=0; i<m.faceNum; i++) {
+				id[0]=m.tri[i*3]+offset;
+				id[1]=m.tri[i*3+1]+offset;
+				id[2]=m.tri[i*3+2]+offset;
+				UFace f=new UFace(this,id);
+				if(m.col!=null) f.c=m.col[i];
+				face[faceNum++]=f;
+			}
+			return;
+		}
+		
+		// read once, g may be this
+		int fn=g.faceNum;
+		vert.addAll(g.vert.v, g.vert.n);
+		for(int i=0; i<fn; i++) face[faceNum++]=new UFace(this,g.face[i],offset);
+	}
+	
+	// Bulk add into compact storage
+	private void addBulkCompact(UGeometry g) {
+		changed();
+		if(g.mesh!=null) mesh.add(g.mesh);
+		else {
+			int offset=mesh.vertNum;
+			mesh.ensureCapacity(mesh.vertNum+g.vert.n, mesh.faceNum+g.faceNum);
+			for(int i=0; i<g.vert.n; i++) {
+				UVec3 vv=g.vert.v[i];
+				mesh.addVertex(vv.x,vv.y,vv.z);
+			}
+			
+			int fn=mesh.faceNum;
+			for(int i=0; i<g.faceNum; i++) {
+				UFace f=g.face[i];
+				mesh.tri[(fn+i)*3]=f.vid[0]+offset;
+				mesh.tri[(fn+i)*3+1]=f.vid[1]+offset;
+				mesh.tri[(fn+i)*3+2]=f.vid[2]+offset;
+				if(mesh.normal!=null) {
+					UVec3 n=f.getNormal();
+					mesh.normal[(fn+i)*3]=n.x;
+					mesh.normal[(fn+i)*3+1]=n.y;
+					mesh.normal[(fn+i)*3+2]=n.z;
+				}
+				if(f.c!=0 && mesh.col==null) mesh.col=new int[mesh.tri.length/3];
+				if(mesh.col!=null) mesh.col[fn+i]=f.c;
+			}
+			mesh.faceNum+=g.faceNum;
+		}
+		faceNum=mesh.faceNum;
+	}
+	
 	public UGeometry add(UGeometry[] models) {
 		for(int i=0; i<models.length; i++) 
 			if(models[i]!=null) add(models[i]);
@@ -750,6 +1123,7 @@ public class UGeometry implements UConstants {
 	 * @return Vertex ID
 	 */
 	public int addVertexToMasterList(UVec3 vv) {
+		expand();
 		if(vert==null) vert=new UVertexList();
 		if(doNoDuplicates) vert.doNoDuplicates=true;
 		int id=vert.addGetID(vv);
@@ -763,6 +1137,7 @@ public class UGeometry implements UConstants {
 	 * @return Array of vertex IDs
 	 */
 	public int [] addVerticesToMasterList(UVec3 vv[]) {
+		expand();
 		if(vert==null) vert=new UVertexList();
 		if(doNoDuplicates) vert.doNoDuplicates=true;
 		int id[]=new int[vv.length];
@@ -821,13 +1196,21 @@ public class UGeometry implements UConstants {
 		int fid=0;
 		UVec3 vv;
 
+		flushTransforms();
+
 		if(opt>0) {
           useNormals=((opt & USEFACECOLOR)>0);
           useFaceColor=((opt & USEFACECOLOR)>0);
           useVColor=((opt & USEVERTEXCOLOR)>0);
 		}
 		
+		if(mesh!=null && !doShapeCache) {
+			drawCompact(g,useNormals,useFaceColor);
+			return;
+		}
+		
 		if(g.getClass().getSimpleName().equals("PGraphicsJava2D")) {
+			if(mesh!=null) expand();
 			g.beginShape(TRIANGLES);
 			for(int i=0; i<faceNum; i++) {			
 				f=face[i];
@@ -846,6 +1229,13 @@ public class UGeometry implements UConstants {
 			return;
 		}
 		
+		if(doShapeCache) {
+			if(shape==null || shapeMod!=modCount || shapeOpt!=opt || shapeG!=g) 
+				buildShape(g,opt,useFaceColor,useVColor);
+			g.shape(shape);
+			return;
+		}
+		
 		g.beginShape(TRIANGLES);
 		if(useNormals) 
 			for(int i=0; i<faceNum; i++) {			
@@ -853,7 +1243,8 @@ public class UGeometry implements UConstants {
 				if(useFaceColor) g.fill(f.c);
 				
 				fid=0;
-				g.normal(f.n.x, f.n.y, f.n.z);
+				UVec3 n=f.getNormal();
+				g.normal(n.x, n.y, n.z);
 				vv=vert.v[f.vid[fid++]];
 				g.vertex(vv.x,vv.y,vv.z);
 				vv=vert.v[f.vid[fid++]];
@@ -893,16 +1284,86 @@ public class UGeometry implements UConstants {
 		g.endShape();		
 	}
 
+	/**
+	 * Draws the compact mesh in immediate mode. Only face colors are 
+	 * available, vertex colors are not stored in compact form.
+	 */
+	private void drawCompact(PGraphics g,boolean useNormals,boolean useFaceColor) {
+		float pos[]=mesh.pos;
+		int tri[]=mesh.tri;
+		boolean is2D=g.getClass().getSimpleName().equals("PGraphicsJava2D");
+		if(useNormals && mesh.normal==null) mesh.calcNormals();
+		
+		g.beginShape(TRIANGLES);
+		for(int i=0; i<faceNum; i++) {
+			if(useFaceColor && mesh.col!=null) g.fill(mesh.col[i]);
+			if(useNormals && !is2D) 
+				g.normal(mesh.normal[i*3], mesh.normal[i*3+1], mesh.normal[i*3+2]);
+			
+			for(int j=0; j<3; j++) {
+				int id=tri[i*3+j]*3;
+				if(is2D) g.vertex(pos[id],pos[id+1]);
+				else g.vertex(pos[id],pos[id+1],pos[id+2]);
+			}
+		}
+		g.endShape();
+	}
+
+	/**
+	 * Builds the retained PShape drawn when <code>doShapeCache</code> is set.
+	 * Face normals are always included so lighting matches immediate mode.
+	 * Unless face or vertex colors are used the shape takes its style from 
+	 * the renderer at draw time.
+	 */
+	private void buildShape(PGraphics g,int opt,boolean useFaceColor,boolean useVColor) {
+		UFace f;
+		UVec3 vv;
+		
+		shape=g.createShape();
+		shape.beginShape(TRIANGLES);
+		if(mesh!=null) {
+			if(mesh.normal==null) mesh.calcNormals();
+			float pos[]=mesh.pos,normal[]=mesh.normal;
+			for(int i=0; i<faceNum; i++) {
+				if(useFaceColor && mesh.col!=null) shape.fill(mesh.col[i]);
+				shape.normal(normal[i*3], normal[i*3+1], normal[i*3+2]);
+				for(int j=0; j<3; j++) {
+					int id=mesh.tri[i*3+j]*3;
+					shape.vertex(pos[id],pos[id+1],pos[id+2]);
+				}
+			}
+		}
+		else for(int i=0; i<faceNum; i++) {			
+			f=face[i];
+			UVec3 n=f.getNormal();
+			if(useFaceColor) shape.fill(f.c);
+			shape.normal(n.x, n.y, n.z);
+			
+			for(int j=0; j<3; j++) {
+				vv=vert.v[f.vid[j]];
+				if(useVColor) shape.fill(vv.col);
+				shape.vertex(vv.x,vv.y,vv.z);
+			}
+		}
+		shape.endShape();
+		if(!useFaceColor && !useVColor) shape.disableStyle();
+		
+		shapeG=g;
+		shapeOpt=opt;
+		shapeMod=modCount;
+	}
+
 	/**
 	 * CURRENTLY BROKEN.
 	 * @param p
 	 */
 	public void drawFaceLabels(PApplet p) {
+		expand();
 		UVec3 pos=new UVec3(),head;
 		
 		for(int i=0; i<faceNum; i++) {
-			if(face[i].centroid==null)  face[i].calcCentroid();
-			if(face[i].n==null) face[i].calcNormal();
+			face[i].getCentroid();
+			face[i].getNormal();
 
 			p.pushMatrix();
 			pos.set(face[i].v[0]).add(face[i].v[1]).mult(0.5f);
@@ -984,30 +1445,46 @@ public class UGeometry implements UConstants {
 	// TRANSFORMATIONS
 
 	public UGeometry rotateX(float a) {
-		vert.rotateX(a);
+		changed();
+		if(doDeferTransforms) return defer(op().rotateX(a));
+		if(mesh!=null) mesh.rotateX(a);
+		else vert.rotateX(a);
 		for(int i=0; i<vln; i++) vl[i].rotateX(a);
 		if(bb!=null) calcBounds();
 		return this;
 	}
 
 	public UGeometry rotateY(float a) {
-		vert.rotateY(a);
+		changed();
+		if(doDeferTransforms) return defer(op().rotateY(a));
+		if(mesh!=null) mesh.rotateY(a);
+		else vert.rotateY(a);
 		for(int i=0; i<vln; i++) vl[i].rotateY(a);
 		if(bb!=null) calcBounds();
 		return this;
 	}
 
 	public UGeometry rotateZ(float a) {
-		vert.rotateZ(a);
+		changed();
+		if(doDeferTransforms) return defer(op().rotateZ(a));
+		if(mesh!=null) mesh.rotateZ(a);
+		else vert.rotateZ(a);
 		for(int i=0; i<vln; i++) vl[i].rotateZ(a);
 		if(bb!=null) calcBounds();
 		return this;
 	}
 
 	public UGeometry translate(float x,float y,float z) {
-		vert.translate(x,y,z);
+		changed();
+		if(doDeferTransforms) return defer(op().translate(x,y,z));
+		if(mesh!=null) mesh.translate(x,y,z);
+		else vert.translate(x,y,z);
 		for(int i=0; i<vln; i++) vl[i].translate(x,y,z);
-		if(bb!=null) bb.translate(x, y, z);
+		if(bb!=null) {
+			// exact, so a current box stays current
+			if(bbMod==modCount-1) bbMod=modCount;
+			bb.translate(x, y, z);
+		}
 		return this;
 	}
 	
@@ -1020,25 +1497,99 @@ public class UGeometry implements UConstants {
 	 * Calculates bounding box and translates the mesh to origin by calling <code>translate(-bb.min.x,-bb.min.y,-bb.min.z);</code>
 	 */
 	public UGeometry toOrigin() {
-		if(bb==null) calcBounds();
+		getBounds();
 		translate(-bb.min.x,-bb.min.y,-bb.min.z);
 		return this;
 	}
 
 
 	public UGeometry scale(float m) {
-		scale(m,m,m);
-		if(bb!=null) bb.scale(m,m,m);
-		return this;
+		return scale(m,m,m);
 	}
 
 	public UGeometry scale(float mx,float my,float mz) {
-		vert.scale(mx,my,mz);
+		changed();
+		if(doDeferTransforms) return defer(op().scale(mx,my,mz));
+		if(mesh!=null) mesh.scale(mx,my,mz);
+		else vert.scale(mx,my,mz);
 		for(int i=0; i<vln; i++) vl[i].scale(mx,my,mz);
-		if(bb!=null) bb.scale(mx,my,mz);
+		if(bb!=null) {
+			// exact, so a current box stays current
+			if(bbMod==modCount-1) bbMod=modCount;
+			bb.transform(op().scale(mx,my,mz));
+		}
 		return this;
 	}
 
+	/**
+	 * Turns on deferred transformations. Calls to <code>rotateX()</code>, 
+	 * <code>translate()</code>, <code>scale()</code> etc. no longer touch the 
+	 * vertices but are combined into a single matrix, which is applied in one 
+	 * pass over the vertices by {@link #flushTransforms()}. This saves a full 
+	 * pass over the mesh for every transformation when several are applied 
+	 * in a row. The bounding box is kept up to date by transforming the box
+	 * from before the first deferred call by the combined matrix. After a
+	 * rotation that box is a conservative fit, methods that need exact 
+	 * bounds recalculate them and <code>calcBounds()</code> always does.
+	 * <p>
+	 * The flush happens automatically before drawing, STL export, adding 
+	 * faces and any method that reads vertex data. Code that reads 
+	 * <code>face</code>, <code>vert</code> or <code>vl</code> directly must call 
+	 * <code>flushTransforms()</code> first. Since the matrix is calculated in 
+	 * double precision, a chain of transformations can differ from applying 
+	 * them one at a time in the last bit of the float coordinates.  
+	 * @return
+	 */
+	public UGeometry deferTransforms() {
+		doDeferTransforms=true;
+		return this;
+	}
+
+	/**
+	 * Applies any deferred transformations to all vertices and vertex lists.
+	 * Does nothing if there are none. See {@link #deferTransforms()}.
+	 * @return
+	 */
+	public UGeometry flushTransforms() {
+		if(pending==null) return this;
+		
+		UMatrix m=pending;
+		pending=null;
+		pendingBB=null;
+		if(m.isIdentity()) return this;
+		
+		if(mesh!=null) mesh.transform(m);
+		else vert.transform(m);
+		for(int i=0; i<vln; i++) vl[i].transform(m);
+		return this;
+	}
+	
+	// Adds transformation to the pending matrix and updates the bounding box.
+	// The box is always derived from the one before deferral, transforming
+	// it step by step would inflate it further with every rotation.
+	private UGeometry defer(UMatrix m) {
+		if(pending==null) pending=new UMatrix();
+		pending.preApply(m);
+		if(bb!=null) {
+			if(pendingBB==null) {
+				pendingBB=new UBBox();
+				pendingBB.addBBox(bb);
+			}
+			bb.reset();
+			bb.addBBox(pendingBB);
+			bb.transform(pending);
+			w=bb.sz.x;
+			h=bb.sz.y;
+			d=bb.sz.z;
+		}
+		return this;
+	}
+	
+	private UMatrix op() {
+		if(op==null) op=new UMatrix();
+		return op.reset();
+	}
+
 	/**
 	 * Convenience method to produce a copy of this UGeometry instance. 
 	 * @return Copy of UGeometry
@@ -1171,19 +1722,58 @@ public class UGeometry implements UConstants {
 		return g;
 	}
 
+	/**
+	 * Calculates the bounding box <code>bb</code>. Always goes over all 
+	 * vertices, <code>getBounds()</code> returns a cached result instead.
+	 * @return
+	 */
 	public UGeometry calcBounds() {
+		flushTransforms();
 		if(bb==null) bb=new UBBox();
 		bb.calc(this);
+		bbMod=modCount;
 		return this;
  	}
 
+	/**
+	 * Returns the bounding box, calculating it only if the geometry has 
+	 * changed since it was last calculated. Repeated calls are free. Code 
+	 * that moves vertices directly must call <code>changed()</code> first, 
+	 * or use <code>calcBounds()</code>.
+	 * @return
+	 */
+	public UBBox getBounds() {
+		flushTransforms();
+		if(bb==null || bbMod!=modCount) calcBounds();
+		return bb;
+	}
+
+	/**
+	 * Recalculates all face normals.
+	 * @return
+	 */
 	public UGeometry calcFaceNormals() {
-		for(int i=0; i<faceNum; i++) face[i].calcNormal();
+		flushTransforms();
+		if(mesh!=null) mesh.calcNormals();
+		else for(int i=0; i<faceNum; i++) face[i].calcNormal();
+		normalMod=modCount;
+		return this;
+	}
+
+	/**
+	 * Recalculates face normals only if the geometry has changed since they
+	 * were last calculated, see <code>getBounds()</code>.
+	 * @return
+	 */
+	public UGeometry updateFaceNormals() {
+		flushTransforms();
+		if(normalMod!=modCount) calcFaceNormals();
 		return this;
 	}
 
 	public UGeometry calcFaceCentroids() {
-		for(int i=0; i<faceNum; i++) face[i].calcCentroid();
+		expand();
+		for(int i=0; i<faceNum; i++) face[i].getCentroid();
 		return this;
 	}
 
@@ -1191,18 +1781,18 @@ public class UGeometry implements UConstants {
 	 * Calculates bounding box and centers all faces by calling <code>translate(-bb.c.x,-bb.c.y,-bb.c.z)</code>
 	 */
 	public UGeometry center() {
-		calcBounds();
+		getBounds();
 		return translate(-bb.c.x,-bb.c.y,-bb.c.z);		
 	}
 
 	public UGeometry setDimensions(float m) {
-		calcBounds();
+		getBounds();
 		scale(m/bb.maxDimension);
 		return this;
 	}
 
 	public UGeometry setDimensionsXZ(float m) {
-		calcBounds();
+		getBounds();
 		float dim=bb.sz.x;
 		if(bb.sz.z>dim) dim=bb.sz.z;
 		
@@ -1211,7 +1801,7 @@ public class UGeometry implements UConstants {
 	}
 
 	public UGeometry setDimensionsXY(float m) {
-		calcBounds();
+		getBounds();
 		float dim=bb.sz.x;
 		if(bb.sz.y>dim) dim=bb.sz.y;
 		
@@ -1220,7 +1810,7 @@ public class UGeometry implements UConstants {
 	}
 
 	public UGeometry setDimensionsYZ(float m) {
-		calcBounds();
+		getBounds();
 		float dim=bb.sz.z;
 		if(bb.sz.y>dim) dim=bb.sz.y;
 		
@@ -1229,134 +1819,48 @@ public class UGeometry implements UConstants {
 	}
 
 	/**
-	 * Output binary STL file of mesh geometry.
+	 * Output binary STL file of mesh geometry, see {@link USTLWriter}.
 	 * @param p Reference to PApplet instance
 	 * @param filename Name of file to save to
 	 */
 	public void writeSTL(PApplet p,String filename) {
-  	byte [] header;
-  	ByteBuffer buf;
-  	UFace f;
-  	
-    try {
-    	if(!filename.toLowerCase().endsWith("stl")) filename+=".stl";
-//    	FileOutputStream out=(FileOutputStream)IO.getOutputStream(filename);
-    	FileOutputStream out=(FileOutputStream)UIO.getOutputStream(p.sketchPath(filename));
-
-  		buf = ByteBuffer.allocate(200);
-  		header=new byte[80];
-  		buf.get(header,0,80);
-    	out.write(header);
-  		buf.rewind();
-
-  		buf.order(ByteOrder.LITTLE_ENDIAN);
-  		buf.putInt(faceNum);
-  		buf.rewind();
-  		buf.get(header,0,4);
-    	out.write(header,0,4);
-  		buf.rewind();
-  		
-  		UUtil.logDivider("Writing STL '"+filename+"' "+faceNum);
-
-    	buf.clear();
-    	header=new byte[50];
-    	if(bb!=null) UUtil.log(bb.toString());
-    	
-			for(int i=0; i<faceNum; i++) {
-				f=face[i];
-				if(f.n==null) f.calcNormal();
-				
-				buf.rewind();
-				buf.putFloat(f.n.x);
-				buf.putFloat(f.n.y);
-				buf.putFloat(f.n.z);
-				
-				for(int j=0; j<3; j++) {
-					buf.putFloat(f.v[j].x);
-					buf.putFloat(f.v[j].y);
-					buf.putFloat(f.v[j].z);
-				}
-				
-				buf.rewind();
-				buf.get(header);
-				out.write(header);
-			}
+		if(!filename.toLowerCase().endsWith("stl")) filename+=".stl";
+		writeSTL(p,filename,new UGeometry[] {this});
+	}
 
-			out.flush();
-			out.close();
-			UUtil.log("Closing '"+filename+"'. "+faceNum+" triangles written.\n");
-		} catch (Exception e) {
-			e.printStackTrace();
-		}          
-  }
+	/**
+	 * Writes binary STL file in the background, so the sketch keeps 
+	 * running during export. A snapshot is taken before the method returns
+	 * (see <code>getSnapshot()</code>), so the geometry can be changed 
+	 * straight away. See 
+	 * {@link USTLWriter#writeAsync(File, UGeometry, USTLWriter.Listener)}.
+	 * @param p Reference to PApplet instance
+	 * @param filename Name of file to save to
+	 * @param l Listener notified on completion or failure, may be 
+	 * <code>null</code> 
+	 * @return CompletableFuture giving the file written
+	 */
+	public CompletableFuture<File> writeSTLAsync(PApplet p,String filename,USTLWriter.Listener l) {
+		if(!filename.toLowerCase().endsWith("stl")) filename+=".stl";
+		return USTLWriter.writeAsync(new File(p.sketchPath(filename)), this, l);
+	}
+
+	public CompletableFuture<File> writeSTLAsync(PApplet p,String filename) {
+		return writeSTLAsync(p, filename, null);
+	}
 
 	/**
-	 * Output binary STL file of mesh geometry.
+	 * Output binary STL file of several models, see {@link USTLWriter}.
 	 * @param p Reference to PApplet instance
 	 * @param filename Name of file to save to
 	 */
 	public static void writeSTL(PApplet p,String filename,UGeometry geo[]) {
-  	byte [] header;
-  	ByteBuffer buf;
-  	UFace f;
-  	int fn=0;
-  	
-    try {
-//    	FileOutputStream out=(FileOutputStream)IO.getOutputStream(filename);
-    	FileOutputStream out=(FileOutputStream)UIO.getOutputStream(p.sketchPath(filename));
-
-    	for(int k=0; k<geo.length; k++) if(geo[k]!=null) fn+=geo[k].faceNum;
-
-  		buf = ByteBuffer.allocate(200);
-  		header=new byte[80];
-  		buf.get(header,0,80);
-    	out.write(header);
-  		buf.rewind();
-
-  		buf.order(ByteOrder.LITTLE_ENDIAN);
-  		buf.putInt(fn);
-  		buf.rewind();
-  		buf.get(header,0,4);
-    	out.write(header,0,4);
-  		buf.rewind();
-  		
-  		UUtil.logDivider("Writing STL '"+filename+"' "+fn);
-
-    	for(int k=0; k<geo.length; k++) if(geo[k]!=null) {
-    		UGeometry g=geo[k];
-    		
-      	buf.clear();
-      	header=new byte[50];
-//      	if(bb!=null) UUtil.log(g.bb.toString());
-      	
-  			for(int i=0; i<g.faceNum; i++) {
-  				f=g.face[i];
-  				if(f.n==null) f.calcNormal();
-  				
-  				buf.rewind();
-  				buf.putFloat(f.n.x);
-  				buf.putFloat(f.n.y);
-  				buf.putFloat(f.n.z);
-  				
-  				for(int j=0; j<3; j++) {
-  					buf.putFloat(f.v[j].x);
-  					buf.putFloat(f.v[j].y);
-  					buf.putFloat(f.v[j].z);
-  				}
-  				
-  				buf.rewind();
-  				buf.get(header);
-  				out.write(header);
-  			}
-    	}
-
-			out.flush();
-			out.close();
-			UUtil.log("Closing '"+filename+"'. "+fn+" triangles written.\n");
-		} catch (Exception e) {
+		try {
+			USTLWriter.write(new File(p.sketchPath(filename)), geo);
+		} catch (IOException e) {
 			e.printStackTrace();
-		}          
-  }
+		}
+	}
 
 /*  public static UGeometry readData(UDataText data) {
   	UGeometry geo=new UGeometry();
@@ -1371,6 +1875,7 @@ public class UGeometry implements UConstants {
 */
 	
 	public void writeData(UDataText data) {
+		expand();
 		data.addDivider("UGeometry - "+faceNum+" faces.");
 		data.add(faceNum).endLn();
 		for(int i=0; i<faceNum; i++) data.add(face[i].toDataString()).endLn();
@@ -1378,6 +1883,7 @@ public class UGeometry implements UConstants {
 	}
 	
 	public void writePOVRayMesh(PApplet p,String filename) {
+		expand();
 		StringBuffer strbuf;
 		PrintWriter outWriter;
 		Writer outStream;
@@ -1439,129 +1945,16 @@ public class UGeometry implements UConstants {
   /////////////////////////////////////////////
   // FUNCTIONS FOR STL INPUT
   
+  /**
+   * Reads binary or ASCII STL file using {@link USTLReader}, returning 
+   * geometry made of UFace and UVec3 objects. Use USTLReader directly 
+   * to keep large models in compact storage or to weld vertices.
+   * @param p
+   * @param path
+   * @return
+   */
   public static UGeometry readSTL(PApplet p,String path) {
-  	byte [] header,byte4;
-  	ByteBuffer buf;
-  	int num=0,step,stepMult;
-  	float vv[]=new float[12];
-    File file=null;
-    String filename;
-    UGeometry geo=null;
-    
-    UProgressInfo progress=new UProgressInfo();
-    float lastPerc=-5;
-
-		header=new byte[80];
-		byte4=new byte[4];
-
-    try { 
-			if (path != null) {
-			  filename=path;
-			  file = new File(path);
-			  if (!file.isAbsolute()) file=new File(p.savePath(path));
-			  if (!file.isAbsolute()) 
-			    throw new RuntimeException("RawSTLBinary requires an absolute path " +
-			    "for the location of the input file.");
-			}
-			
-			FileInputStream in=new FileInputStream(file);
-    	System.out.println("\n\nReading "+file.getName());
-			
-			in.read(header);
-			
-  		// test if ASCII STL
-  		String asciiTest="";
-  		for(int i=0; i<5; i++) asciiTest+=(char)header[i];
-  		
-  		if(asciiTest.compareTo("solid")==0) { // IS ASCII STL
-  			String dat;
-  			
-  			in.close();
-      	geo=new UGeometry();
-  			
-  			BufferedReader read = new BufferedReader(new FileReader(path));  			
-  			dat=read.readLine();
-  			UUtil.log(dat);
-  			
-  			UVec3 v[]=UVec3.getVec3(3);
-  			String tok[],FACET="facet";
-  			
-  			while(dat!=null) {
-  				dat=read.readLine(); // should be "facet"
-  				if(dat==null || dat.indexOf(FACET)==-1) { // error or "endsolid"
-  	  			UUtil.log(dat);
-  					dat=null;
-  					read.close();
-  				}
-  				else {
-    				dat=read.readLine(); // "outer loop"
-    				
-    				for(int i=0; i<3; i++) {
-  	  				dat=read.readLine().trim();  // "vertex x y z"
-//    	  			UUtil.log(dat);
-  	  				tok=dat.split(" ");
-  	  				v[i].set(
-  	  						UUtil.parseFloat(tok[1]),
-  	  						UUtil.parseFloat(tok[2]),
-  	  						UUtil.parseFloat(tok[3]));
-    				}
-    				
-    				geo.addFace(v);
-    				if(geo.faceNum%1000==0) UUtil.log(geo.faceNum+" faces read.");
-    				
-    				dat=read.readLine(); // "end loop"
-    				dat=read.readLine(); // "end facet"
-  				}  				
-  			}
-  		}
-  		else { // BINARY STL
-  			in.read(byte4);
-    		buf = ByteBuffer.wrap(byte4);
-    		buf.order(ByteOrder.nativeOrder());
-    		num=buf.getInt();
-    		
-    		UUtil.log("Polygons to read: "+num);
-
-      	header=new byte[50];    	
-      	
-      	geo=new UGeometry();
-
-      	progress.start();
-    		int id=0;
-  			for(int i=0; i<num; i++) {
-  				in.read(header);
-  				buf = ByteBuffer.wrap(header);
-  	  		buf.order(ByteOrder.nativeOrder());
-  	  		buf.rewind();
-  	  		
-  	  		for(int j=0; j<12; j++) vv[j]=buf.getFloat();
-		  		id=3;
-		  		geo.addFace(
-	  				new UVec3[] {
-		  				new UVec3(vv[id++],vv[id++],vv[id++]),
-		  				new UVec3(vv[id++],vv[id++],vv[id++]),
-		  				new UVec3(vv[id++],vv[id++],vv[id++])
-	  				});
-	  		
-		  		progress.update(p, 100f*(float)i/(float)(num-1));
-		  		if(progress.perc-lastPerc>5 || progress.perc>99.9f) {
-  	  			lastPerc=progress.perc;
-  	  			UUtil.log(geo.faceNum+" faces read, "+progress.lastUpdate);
-		  		}
-  			}
-  		} // END READ BINARY
-
-  		if(num>0)
-  			UUtil.log("Faces read: "+geo.faceNum+" ("+num+" reported in file)");
-  		else 
-  			UUtil.log("Faces read: "+geo.faceNum);
-
-    } catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} 
-    return geo;
-    
+  	return new USTLReader().setCompact(false).read(p, path);
   }
 
 	public static float triangleArea(UVec3 v1,UVec3 v2,UVec3 v3) {
@@ -1578,23 +1971,44 @@ public class UGeometry implements UConstants {
 		return val;
 	}
 
+	/**
+	 * Calculates the total surface area. See <code>getSurfaceArea()</code> 
+	 * for a cached version.
+	 * @return
+	 */
 	public float surfaceArea() {
 		int id=0;
 		float val=0;
 		
-		for(int i=0; i<faceNum; i++) {
+		flushTransforms();
+		if(mesh!=null) val=mesh.surfaceArea();
+		else for(int i=0; i<faceNum; i++) {
 			val+=triangleArea(face[i].v[0],face[i].v[1],face[i].v[2]);
 		}
 		
+		area=val;
+		areaMod=modCount;
 		return val;
 	}
 
+	/**
+	 * Returns the surface area, calculating it only if the geometry has 
+	 * changed since it was last calculated, see <code>getBounds()</code>.
+	 * @return
+	 */
+	public float getSurfaceArea() {
+		flushTransforms();
+		if(areaMod!=modCount) surfaceArea();
+		return area;
+	}
+
 	/**
 	 * Convenience method to call {@link unlekker.modelbuilder.UVertexList.drawVertices() UVertexList.drawVertices()}
 	 * on all vertex lists. NOTE: begin/endShape() are not called.
 	 * @param p Reference to PApplet instance
 	 */
 	public void drawVertexLists(PApplet p) {
+		flushTransforms();
 		for(int i=0; i<vln; i++) vl[i].draw(p);			
 	}
 
@@ -1607,6 +2021,9 @@ public class UGeometry implements UConstants {
 	}
 	
 	public UGeometry removeDuplicateVertices() {
+		expand();
+		changed();
+		topoMod++;
 		int id[][]=vert.removeDuplicates();
 		if(bb!=null) calcBounds();
 		
@@ -1632,6 +2049,7 @@ public class UGeometry implements UConstants {
 	 * @return Array of UVec3 instances matching vertex IDs
 	 */
 	public UVec3[] matchIDtoVertex(int[] id, UVec3[] v) {
+		expand();
 		if(v==null) v=new UVec3[id.length];
 		for(int i=0; i<id.length; i++) v[i]=vert.v[id[i]];
 		
@@ -1640,6 +2058,7 @@ public class UGeometry implements UConstants {
 
 
 	public UFace [] getNonQuads() {
+		expand();
 		UFace [] f=new UFace[100];
 		int fn=0;
 		boolean found;
@@ -1665,7 +2084,8 @@ public class UGeometry implements UConstants {
 	
 
 	public String toString() {
-		String s="UGeometry: f="+faceNum+" q="+quadNum+" v="+vert.n+" children="+child.size();
+		String s="UGeometry: f="+faceNum+" q="+quadNum+
+			" v="+(mesh!=null ? mesh.vertNum : vert.n)+" children="+child.size();
 		if(bb!=null) s+=" "+bb.toString();
 		return s;
 	}
@@ -0,0 +1,131 @@
+package unlekker.modelbuilder;
+
+import java.io.*;
+
+/**
+ * Frozen copy of a {@link UGeometry}, for handing a consistent mesh to
+ * render, export or analysis threads while the geometry keeps being built.
+ * Get one with {@link UGeometry#getSnapshot()}.
+ * <p>
+ * A snapshot of a compact geometry shares the arrays of its
+ * {@link UCompactMesh} instead of copying them, so taking one is O(1).
+ * The mesh is marked as shared and copies its arrays the first time it is
+ * changed in place, by a transformation or by recalculating normals
+ * (copy-on-write). Adding faces doesn't copy anything, since the new data
+ * goes past the <code>vertNum</code> and <code>faceNum</code> entries the
+ * snapshot can see. A geometry made of UFace objects is packed into a
+ * compact mesh once, which is cached until the geometry changes.
+ * <p>
+ * Snapshots must be taken on the thread that changes the geometry. After
+ * that they can be passed to and read by any number of threads without
+ * locking. The array fields are public for fast access but must be treated
+ * as read-only. Use <code>getMesh()</code> or <code>toGeometry()</code> to
+ * get something that can be edited.
+ */
+public final class UGeometrySnapshot {
+	/**
+	 * Vertex positions, 3 floats per vertex.
+	 */
+	public final float pos[];
+	/**
+	 * Triangle vertex indices, 3 ints per face.
+	 */
+	public final int tri[];
+	/**
+	 * Face normals, 3 floats per face.
+	 */
+	public final float normal[];
+	/**
+	 * Face colors, 1 int per face, or <code>null</code>.
+	 */
+	public final int col[];
+
+	public final int vertNum,faceNum;
+	/**
+	 * <code>modCount</code> of the geometry when the snapshot was taken.
+	 */
+	public final int modCount;
+
+	/**
+	 * Takes snapshot of a compact mesh and marks the mesh as shared. The
+	 * mesh gets face normals if it has none.
+	 */
+	UGeometrySnapshot(UCompactMesh m,int modCount) {
+		if(m.normal==null) m.calcNormals();
+		if(m.share==UCompactMesh.OWNED) m.share=UCompactMesh.SHARED;
+
+		pos=m.pos;
+		tri=m.tri;
+		normal=m.normal;
+		col=m.col;
+		vertNum=m.vertNum;
+		faceNum=m.faceNum;
+		this.modCount=modCount;
+	}
+
+	/**
+	 * Copies vertex <code>id</code> into v, creating v if it is null.
+	 */
+	public UVec3 getVertex(int id,UVec3 v) {
+		if(v==null) v=new UVec3();
+		id*=3;
+		return v.set(pos[id],pos[id+1],pos[id+2]);
+	}
+
+	/**
+	 * Copies normal of face <code>id</code> into v, creating v if it is null.
+	 */
+	public UVec3 getNormal(int id,UVec3 v) {
+		if(v==null) v=new UVec3();
+		id*=3;
+		return v.set(normal[id],normal[id+1],normal[id+2]);
+	}
+
+	/**
+	 * Returns a compact mesh using the snapshot's arrays. Any change to it,
+	 * including adding faces, first copies the arrays, so the snapshot is
+	 * never affected.
+	 */
+	public UCompactMesh getMesh() {
+		UCompactMesh m=new UCompactMesh(0,0);
+		m.pos=pos;
+		m.tri=tri;
+		m.normal=normal;
+		m.col=col;
+		m.vertNum=vertNum;
+		m.faceNum=faceNum;
+		m.share=UCompactMesh.BORROWED;
+		return m;
+	}
+
+	/**
+	 * Returns a compact UGeometry using the snapshot's arrays, for drawing
+	 * or further editing. Created in O(1), see <code>getMesh()</code>.
+	 */
+	public UGeometry toGeometry() {
+		UGeometry g=new UGeometry();
+		g.setMesh(getMesh());
+		return g;
+	}
+
+	/**
+	 * Writes snapshot to a binary STL file, see {@link USTLWriter}.
+	 */
+	public void writeSTL(File file) throws IOException {
+		USTLWriter.write(file, new UGeometry[] {toGeometry()});
+	}
+
+	/**
+	 * Approximate memory used by the arrays, in bytes. Arrays shared with
+	 * the live geometry or other snapshots are included.
+	 */
+	public long memorySize() {
+		long size=pos.length*4l+tri.length*4l+normal.length*4l;
+		if(col!=null) size+=col.length*4l;
+		return size;
+	}
+
+	public String toString() {
+		return "UGeometrySnapshot: f="+faceNum+" v="+vertNum+" modCount="+modCount;
+	}
+}
@@ -1,12 +1,80 @@
 package unlekker.modelbuilder;
 
+import processing.core.PGraphics;
+import processing.core.PMatrix3D;
+import processing.opengl.PGraphicsOpenGL;
+
 public class UIntersections {
 
+	/**
+	 * Calculates the intersection of the line through pt1 and pt2 with a 
+	 * plane given by a point and its normal.
+	 * @return Intersection point, or <code>null</code> if the line is 
+	 * parallel to the plane
+	 */
 	public static UVec3 linePlaneIntersection(UVec3 pt1,UVec3 pt2, UVec3 planePt, UVec3 planeN) {
-		UVec3 res=new UVec3();
-		
 	  //http://paulbourke.net/geometry/planeline/
+		float dx=pt2.x-pt1.x,dy=pt2.y-pt1.y,dz=pt2.z-pt1.z;
+		float denom=planeN.x*dx+planeN.y*dy+planeN.z*dz;
+		if(denom==0) return null;
+		
+		float u=(planeN.x*(planePt.x-pt1.x)+
+				planeN.y*(planePt.y-pt1.y)+
+				planeN.z*(planePt.z-pt1.z))/denom;
+		
+		return new UVec3(pt1.x+dx*u,pt1.y+dy*u,pt1.z+dz*u);
+	}
 
-		return res;
+	/**
+	 * Ray / triangle intersection, hitting the triangle from either side.
+	 * @param orig Ray origin
+	 * @param dir Ray direction
+	 * @return Ray parameter t of the hit (the hit is at orig+dir*t), or -1
+	 */
+	public static float rayTriangle(UVec3 orig,UVec3 dir,UVec3 v0,UVec3 v1,UVec3 v2) {
+		UVec3 e1=UVec3.sub(v1, v0),e2=UVec3.sub(v2, v0);
+		UVec3 p=dir.cross(e2);
+		float det=e1.dot(p);
+		if(det>-1e-12f && det<1e-12f) return -1;
+		float inv=1f/det;
+		
+		UVec3 s=UVec3.sub(orig, v0);
+		float u=s.dot(p)*inv;
+		if(u<0 || u>1) return -1;
+		
+		UVec3 q=s.cross(e1);
+		float v=dir.dot(q)*inv;
+		if(v<0 || u+v>1) return -1;
+		
+		float t=e2.dot(q)*inv;
+		return (t<0 ? -1 : t);
+	}
+	
+	/**
+	 * Calculates the ray through a screen position in the current model 
+	 * coordinates, by unprojecting it with the renderer's projection and
+	 * modelview matrices. Requires an OpenGL renderer.
+	 * @param g Renderer
+	 * @param mx Screen X
+	 * @param my Screen Y
+	 * @param orig Set to the ray origin on the near plane
+	 * @param dir Set to the ray direction, of unit length
+	 * @return false if the ray could not be calculated
+	 */
+	public static boolean getPickRay(PGraphics g,float mx,float my,UVec3 orig,UVec3 dir) {
+		if(!(g instanceof PGraphicsOpenGL)) return false;
+		
+		PMatrix3D inv=new PMatrix3D(((PGraphicsOpenGL)g).projmodelview);
+		if(!inv.invert()) return false;
+		
+		// same screen mapping as PGraphicsOpenGL.screenX/Y
+		float x=2*mx/g.width-1,y=1-2*my/g.height;
+		float near[]=inv.mult(new float[] {x,y,-1,1}, new float[4]);
+		float far[]=inv.mult(new float[] {x,y,1,1}, new float[4]);
+		if(near[3]==0 || far[3]==0) return false;
+		
+		orig.set(near[0]/near[3],near[1]/near[3],near[2]/near[3]);
+		dir.set(far[0]/far[3],far[1]/far[3],far[2]/far[3]).sub(orig).norm();
+		return true;
 	}
 }
@@ -0,0 +1,149 @@
+package unlekker.modelbuilder;
+
+/**
+ * Affine 3D transformation (a 3x4 matrix) in double precision. Used by
+ * {@link UGeometry} to collect transformations and apply them to all
+ * vertices in a single pass.
+ * <p>
+ * Each call to <code>rotateX()</code>, <code>translate()</code> etc.
+ * applies the new transformation after the ones already in the matrix,
+ * the same order as calling them one by one on a UVec3. A matrix holding a
+ * single rotation, translation or scale gives exactly the same result as
+ * the matching UVec3 method.
+ */
+public class UMatrix {
+	public double m00,m01,m02,m03;
+	public double m10,m11,m12,m13;
+	public double m20,m21,m22,m23;
+
+	public UMatrix() {
+		reset();
+	}
+
+	public UMatrix(UMatrix m) {
+		set(m);
+	}
+
+	public UMatrix reset() {
+		m00=1; m01=0; m02=0; m03=0;
+		m10=0; m11=1; m12=0; m13=0;
+		m20=0; m21=0; m22=1; m23=0;
+		return this;
+	}
+
+	public UMatrix set(UMatrix m) {
+		m00=m.m00; m01=m.m01; m02=m.m02; m03=m.m03;
+		m10=m.m10; m11=m.m11; m12=m.m12; m13=m.m13;
+		m20=m.m20; m21=m.m21; m22=m.m22; m23=m.m23;
+		return this;
+	}
+
+	public boolean isIdentity() {
+		return m00==1 && m01==0 && m02==0 && m03==0 &&
+				m10==0 && m11==1 && m12==0 && m13==0 &&
+				m20==0 && m21==0 && m22==1 && m23==0;
+	}
+
+	public UMatrix rotateX(float a) {
+		double sin=Math.sin(a),cos=Math.cos(a);
+		return preApply(1,0,0,0, 0,cos,-sin,0, 0,sin,cos,0);
+	}
+
+	public UMatrix rotateY(float a) {
+		double sin=Math.sin(a),cos=Math.cos(a);
+		return preApply(cos,0,-sin,0, 0,1,0,0, sin,0,cos,0);
+	}
+
+	public UMatrix rotateZ(float a) {
+		double sin=Math.sin(a),cos=Math.cos(a);
+		return preApply(cos,-sin,0,0, sin,cos,0,0, 0,0,1,0);
+	}
+
+	public UMatrix translate(float x,float y,float z) {
+		m03+=x;
+		m13+=y;
+		m23+=z;
+		return this;
+	}
+
+	public UMatrix scale(float mx,float my,float mz) {
+		m00*=mx; m01*=mx; m02*=mx; m03*=mx;
+		m10*=my; m11*=my; m12*=my; m13*=my;
+		m20*=mz; m21*=mz; m22*=mz; m23*=mz;
+		return this;
+	}
+
+	/**
+	 * Applies transformation m after this one.
+	 */
+	public UMatrix preApply(UMatrix m) {
+		return preApply(m.m00,m.m01,m.m02,m.m03,
+				m.m10,m.m11,m.m12,m.m13, m.m20,m.m21,m.m22,m.m23);
+	}
+
+	/**
+	 * Replaces this matrix with A*this, where A is given row by row.
+	 */
+	public UMatrix preApply(
+			double a00,double a01,double a02,double a03,
+			double a10,double a11,double a12,double a13,
+			double a20,double a21,double a22,double a23) {
+		double r00=a00*m00+a01*m10+a02*m20;
+		double r01=a00*m01+a01*m11+a02*m21;
+		double r02=a00*m02+a01*m12+a02*m22;
+		double r03=a00*m03+a01*m13+a02*m23+a03;
+		double r10=a10*m00+a11*m10+a12*m20;
+		double r11=a10*m01+a11*m11+a12*m21;
+		double r12=a10*m02+a11*m12+a12*m22;
+		double r13=a10*m03+a11*m13+a12*m23+a13;
+		double r20=a20*m00+a21*m10+a22*m20;
+		double r21=a20*m01+a21*m11+a22*m21;
+		double r22=a20*m02+a21*m12+a22*m22;
+		double r23=a20*m03+a21*m13+a22*m23+a23;
+
+		m00=r00; m01=r01; m02=r02; m03=r03;
+		m10=r10; m11=r11; m12=r12; m13=r13;
+		m20=r20; m21=r21; m22=r22; m23=r23;
+		return this;
+	}
+
+	public UVec3 apply(UVec3 v) {
+		double x=v.x,y=v.y,z=v.z;
+		v.x=(float)(m00*x+m01*y+m02*z+m03);
+		v.y=(float)(m10*x+m11*y+m12*z+m13);
+		v.z=(float)(m20*x+m21*y+m22*z+m23);
+		return v;
+	}
+
+	/**
+	 * Transforms n vertices. Runs in parallel for large arrays, see 
+	 * {@link UParallel}.
+	 */
+	public void apply(final UVec3 v[],int n) {
+		UParallel.run(n, new UParallel.Range() {
+			public void run(int start,int end) {
+				for(int i=start; i<end; i++) apply(v[i]);
+			}
+		});
+	}
+
+	/**
+	 * Transforms n points packed as x,y,z triplets. Runs in parallel for 
+	 * large arrays, see {@link UParallel}, using the kernel selected in 
+	 * {@link UMeshKernels}.
+	 */
+	public void apply(final float pos[],int n) {
+		final UMatrix m=this;
+		UParallel.run(n, new UParallel.Range() {
+			public void run(int start,int end) {
+				UMeshKernels.transform(pos, start, end, m);
+			}
+		});
+	}
+
+	public String toString() {
+		return "UMatrix: ["+m00+","+m01+","+m02+","+m03+"]["+
+				m10+","+m11+","+m12+","+m13+"]["+
+				m20+","+m21+","+m22+","+m23+"]";
+	}
+}
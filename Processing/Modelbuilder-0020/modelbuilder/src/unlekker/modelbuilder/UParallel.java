@@ -0,0 +1,117 @@
+package unlekker.modelbuilder;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs per-vertex loops across several cores. A loop is given as a
+ * {@link Range} that processes vertices <code>start</code> to
+ * <code>end-1</code>. If parallel mode is on and the loop is at least
+ * <code>threshold</code> vertices long, the range is split into chunks that
+ * run in a ForkJoinPool, otherwise it runs on the calling thread.
+ * <p>
+ * Used by the transformations in {@link UVertexList}, {@link UMatrix} and the
+ * vertex filters. Each vertex is processed independently with the same
+ * arithmetic as the serial loop, so results are bit-identical whichever way
+ * the loop is run.
+ * <p>
+ * Parallel mode is off by default:
+ * <p>
+ * <code>UParallel.enable();<br>
+ * UParallel.threshold=20000;<br>
+ * UParallel.setPool(new ForkJoinPool(4));</code>
+ */
+public class UParallel {
+	/**
+	 * If true, loops of at least <code>threshold</code> vertices are split
+	 * across the pool.
+	 */
+	public static boolean doParallel=false;
+	/**
+	 * Minimum loop length for parallel execution. Shorter loops are not worth
+	 * the overhead of scheduling tasks.
+	 */
+	public static int threshold=50000;
+	/**
+	 * Smallest chunk a loop is split into.
+	 */
+	public static int minChunk=4096;
+
+	private static ForkJoinPool pool;
+
+	/**
+	 * A loop body processing the index range <code>start</code> to
+	 * <code>end-1</code>. Must only touch data belonging to its own indices.
+	 */
+	public interface Range {
+		public void run(int start,int end);
+	}
+
+	public static void enable() {
+		doParallel=true;
+	}
+
+	public static void disable() {
+		doParallel=false;
+	}
+
+	/**
+	 * Sets the pool used for parallel loops. If <code>null</code> the common
+	 * ForkJoinPool is used.
+	 * @param p
+	 */
+	public static void setPool(ForkJoinPool p) {
+		pool=p;
+	}
+
+	public static ForkJoinPool getPool() {
+		return (pool!=null ? pool : ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Returns true if a loop of length n would run in parallel.
+	 */
+	public static boolean isParallel(int n) {
+		return doParallel && n>=threshold && n>=minChunk*2;
+	}
+
+	/**
+	 * Runs r over the range 0 to n-1, in parallel if n is large enough.
+	 * @param n Number of items
+	 * @param r Loop body
+	 */
+	public static void run(int n,Range r) {
+		if(n<=0) return;
+		if(!isParallel(n)) {
+			r.run(0,n);
+			return;
+		}
+
+		ForkJoinPool p=getPool();
+		int chunk=Math.max(minChunk, n/(p.getParallelism()*4));
+		p.invoke(new Task(r,0,n,chunk));
+	}
+
+	static class Task extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		Range r;
+		int start,end,chunk;
+
+		Task(Range r,int start,int end,int chunk) {
+			this.r=r;
+			this.start=start;
+			this.end=end;
+			this.chunk=chunk;
+		}
+
+		protected void compute() {
+			if(end-start<=chunk) {
+				r.run(start,end);
+				return;
+			}
+
+			int mid=(start+end)>>>1;
+			invokeAll(new Task(r,start,mid,chunk),new Task(r,mid,end,chunk));
+		}
+	}
+}
@@ -0,0 +1,538 @@
+package unlekker.modelbuilder;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import processing.core.PApplet;
+import unlekker.util.*;
+
+/**
+ * Fast STL reader. Binary files are memory-mapped and the triangle records
+ * are decoded straight into a {@link UCompactMesh}, in blocks that are split
+ * across threads by {@link UParallel}. No objects are created per triangle,
+ * and progress is logged once per block rather than per triangle.
+ * <p>
+ * ASCII files are scanned as bytes by {@link Scanner}, which parses
+ * numbers without creating Strings and accepts any mix of spaces, tabs and
+ * line breaks between tokens. Only <code>vertex</code> lines are used,
+ * every three of them make a triangle.
+ * <p>
+ * By default every triangle gets its own three vertices, as in the STL file.
+ * With <code>setWeld(true)</code> vertices with identical coordinates are
+ * merged, which gives a connected mesh for {@link UAdjacency} and a third
+ * of the memory for vertex positions.
+ * <p>
+ * <code>UGeometry.readSTL()</code> uses this class and expands the result
+ * to UFace objects. To keep a large model compact:
+ * <p>
+ * <code>UGeometry model=new USTLReader().setWeld(true).read(this, "scan.stl");</code>
+ */
+public class USTLReader {
+	/**
+	 * Triangles decoded per block. Progress is logged after each block.
+	 */
+	public static int blockSize=1<<20;
+
+	public boolean doWeld=false,doCompact=true,doLog=true;
+
+	/**
+	 * If true, vertices with identical coordinates are merged.
+	 */
+	public USTLReader setWeld(boolean weld) {
+		doWeld=weld;
+		return this;
+	}
+
+	/**
+	 * If true (default) <code>read()</code> returns compact geometry,
+	 * otherwise it is expanded to UFace and UVec3 objects.
+	 */
+	public USTLReader setCompact(boolean compact) {
+		doCompact=compact;
+		return this;
+	}
+
+	/**
+	 * Reads STL file. Relative paths are resolved with
+	 * <code>p.savePath()</code>.
+	 * @param p Parent PApplet, may be <code>null</code> if path is absolute
+	 * @param path
+	 * @return Geometry, or <code>null</code> if the file could not be read
+	 */
+	public UGeometry read(PApplet p,String path) {
+		File file=new File(path);
+		if(!file.isAbsolute() && p!=null) file=new File(p.savePath(path));
+		if(!file.isAbsolute())
+			throw new RuntimeException("USTLReader requires an absolute path " +
+					"for the location of the input file.");
+
+		UGeometry geo=null;
+		try {
+			if(doLog) System.out.println("\n\nReading "+file.getName());
+			UCompactMesh m=readMesh(file);
+			if(doWeld) weld(m);
+			geo=new UGeometry();
+			geo.setMesh(m);
+			if(!doCompact) geo.expand();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return geo;
+	}
+
+	/**
+	 * Reads binary or ASCII STL into a compact mesh with normals calculated
+	 * from the vertices.
+	 * @param file
+	 * @throws IOException
+	 */
+	public UCompactMesh readMesh(File file) throws IOException {
+		RandomAccessFile raf=new RandomAccessFile(file, "r");
+		FileChannel ch=raf.getChannel();
+
+		try {
+			long size=ch.size();
+			long num=triangleCount(ch,size);
+			if(num<0) return readASCII(file,size);
+			if(num*9>Integer.MAX_VALUE)
+				throw new IOException("STL file too large: "+num+" triangles.");
+
+			int n=(int)num;
+			if(doLog) UUtil.log("Polygons to read: "+n);
+
+			final UCompactMesh m=new UCompactMesh(n*3,n);
+			m.normal=new float[m.tri.length];
+			UProgressInfo progress=new UProgressInfo();
+
+			for(int block=0; block<n; block+=blockSize) {
+				final int first=block;
+				int cnt=Math.min(blockSize, n-block);
+				final MappedByteBuffer buf=ch.map(FileChannel.MapMode.READ_ONLY, 84+block*50l, cnt*50l);
+
+				UParallel.run(cnt, new UParallel.Range() {
+					public void run(int start,int end) {
+						ByteBuffer b=buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+						decode(b, m.pos, m.tri, first, start, end);
+						UMeshKernels.faceNormals(m.pos, m.tri, m.normal, first+start, first+end);
+					}
+				});
+
+				if(doLog) UUtil.log((block+cnt)+" faces read, "+
+						progress.update(null, 100f*(block+cnt)/n));
+			}
+
+			m.vertNum=n*3;
+			m.faceNum=n;
+			if(doLog) UUtil.log("Faces read: "+n);
+			return m;
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Streams the triangles of a binary or ASCII STL file to a sink in 
+	 * chunks of up to <code>chunk</code> triangles, without building a mesh. 
+	 * Memory use depends on the chunk size, not on the size of the file. See
+	 * {@link UTriangleStream}.
+	 * @param file
+	 * @param chunk Maximum number of triangles per chunk
+	 * @param sink
+	 * @return Number of triangles read
+	 * @throws IOException
+	 */
+	public long stream(File file,int chunk,UTriangleSink sink) throws IOException {
+		RandomAccessFile raf=new RandomAccessFile(file, "r");
+		FileChannel ch=raf.getChannel();
+
+		try {
+			long size=ch.size();
+			long num=triangleCount(ch,size);
+			final float tri[]=new float[chunk*9];
+			long total=0;
+			sink.begin();
+
+			if(num<0) {
+				Scanner sc=new Scanner(Channels.newInputStream(ch));
+				int n=0,vn=0;
+				while(sc.next()) {
+					if(!sc.is(VERTEX)) continue;
+
+					int id=n*9+vn*3;
+					tri[id]=sc.nextFloat();
+					tri[id+1]=sc.nextFloat();
+					tri[id+2]=sc.nextFloat();
+					if(++vn==3) {
+						vn=0;
+						if(++n==chunk) {
+							sink.add(tri,n);
+							total+=n;
+							n=0;
+						}
+					}
+				}
+				if(n>0) sink.add(tri,n);
+				total+=n;
+			}
+			else {
+				if(doLog) UUtil.log("Polygons to stream: "+num);
+				UProgressInfo progress=new UProgressInfo();
+				long nextLog=num/10;
+
+				for(long block=0; block<num; block+=chunk) {
+					int cnt=(int)Math.min(chunk, num-block);
+					final MappedByteBuffer buf=ch.map(FileChannel.MapMode.READ_ONLY, 84+block*50, cnt*50l);
+
+					UParallel.run(cnt, new UParallel.Range() {
+						public void run(int start,int end) {
+							decode(buf.duplicate().order(ByteOrder.LITTLE_ENDIAN), tri, null, 0, start, end);
+						}
+					});
+					sink.add(tri,cnt);
+					total+=cnt;
+
+					if(doLog && total>=nextLog) {
+						UUtil.log(total+" faces streamed, "+progress.update(null, 100f*total/num));
+						nextLog+=num/10;
+					}
+				}
+			}
+
+			sink.end();
+			if(doLog) UUtil.log("Faces streamed: "+total);
+			return total;
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	// Number of triangles in a binary STL file, or -1 if the file is ASCII
+	private static long triangleCount(FileChannel ch,long size) throws IOException {
+		if(size<84) return (size>=5 && isASCII(ch,size) ? -1 : 0);
+
+		ByteBuffer head=ByteBuffer.allocate(84).order(ByteOrder.LITTLE_ENDIAN);
+		ch.read(head, 0);
+		long num=head.getInt(80) & 0xffffffffL;
+
+		// ASCII files start with "solid", but so do some binary files, so
+		// the file size decides
+		if(size!=84+num*50 && isASCII(ch,size)) return -1;
+
+		if(84+num*50>size) {
+			UUtil.log("STL file reports "+num+" triangles, only "+((size-84)/50)+" found.");
+			num=(size-84)/50;
+		}
+		return num;
+	}
+
+	// Decodes records start to end-1 of a mapped block. Each record is a
+	// normal, three vertices and a 2 byte attribute. The stored normal is
+	// ignored, since many exporters write zeroes. tri may be null.
+	static void decode(ByteBuffer b,float pos[],int tri[],int first,int start,int end) {
+		for(int i=start; i<end; i++) {
+			int in=i*50+12,out=(first+i)*9;
+			for(int j=0; j<9; j++) pos[out+j]=b.getFloat(in+j*4);
+			if(tri==null) continue;
+
+			int id=(first+i)*3;
+			tri[id]=id;
+			tri[id+1]=id+1;
+			tri[id+2]=id+2;
+		}
+	}
+
+	private static boolean isASCII(FileChannel ch,long size) throws IOException {
+		ByteBuffer b=ByteBuffer.allocate((int)Math.min(size, 256));
+		ch.read(b, 0);
+		b.flip();
+
+		int i=0;
+		while(i<b.limit() && Character.isWhitespace(b.get(i))) i++;
+		String solid="solid";
+		for(int j=0; j<solid.length(); j++,i++)
+			if(i>=b.limit() || b.get(i)!=solid.charAt(j)) return false;
+		return true;
+	}
+
+	/**
+	 * Merges vertices with identical coordinates and removes the unused
+	 * positions.
+	 * @param m
+	 */
+	public static void weld(UCompactMesh m) {
+		m.unshare();
+		int vn=m.vertNum;
+		int size=16;
+		while(size<vn*2) size*=2;
+		int mask=size-1;
+		int table[]=new int[size];
+		for(int i=0; i<size; i++) table[i]=-1;
+
+		float pos[]=m.pos,npos[]=new float[Math.max(vn,1)*3];
+		int remap[]=new int[vn],cnt=0;
+
+		for(int i=0; i<vn; i++) {
+			// +0 turns -0 into 0, so both hash the same
+			float x=pos[i*3]+0f,y=pos[i*3+1]+0f,z=pos[i*3+2]+0f;
+			long k=Float.floatToIntBits(x)*0x9E3779B97F4A7C15L+
+					Float.floatToIntBits(y)*0xC2B2AE3D27D4EB4FL+
+					Float.floatToIntBits(z)*0x165667B19E3779F9L;
+			k=(k^(k>>>29))*0xBF58476D1CE4E5B9L;
+			int h=(int)(k^(k>>>32)) & mask;
+
+			int id;
+			while((id=table[h])!=-1) {
+				if(npos[id*3]==x && npos[id*3+1]==y && npos[id*3+2]==z) break;
+				h=(h+1) & mask;
+			}
+			if(id==-1) {
+				id=cnt++;
+				table[h]=id;
+				npos[id*3]=x;
+				npos[id*3+1]=y;
+				npos[id*3+2]=z;
+			}
+			remap[i]=id;
+		}
+
+		for(int i=0; i<m.faceNum*3; i++) m.tri[i]=remap[m.tri[i]];
+		m.pos=UUtil.resizeArrayFloat(npos, Math.max(cnt,1)*3);
+		m.vertNum=cnt;
+	}
+
+	/////////////////////////////////////////////////////////
+	// ASCII STL
+
+	private UCompactMesh readASCII(File file,long size) throws IOException {
+		InputStream in=new FileInputStream(file);
+		try {
+			return readASCII(in,size);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads ASCII STL from a stream into a compact mesh with normals
+	 * calculated from the vertices.
+	 * @param in
+	 * @param size Length of stream in bytes, used for progress. Pass -1 if
+	 * unknown.
+	 * @throws IOException
+	 */
+	public UCompactMesh readASCII(InputStream in,long size) throws IOException {
+		Scanner sc=new Scanner(in);
+		UCompactMesh m=new UCompactMesh(
+				(int)Math.min(Math.max(size/80,100),1<<26),
+				(int)Math.min(Math.max(size/250,100),1<<24));
+		UProgressInfo progress=new UProgressInfo();
+		long nextLog=size/10;
+
+		int vn=0;
+		while(sc.next()) {
+			if(!sc.is(VERTEX)) continue;
+
+			float x=sc.nextFloat(),y=sc.nextFloat(),z=sc.nextFloat();
+			m.addVertex(x,y,z);
+			if(++vn==3) {
+				int id=m.vertNum-3;
+				m.addFace(id,id+1,id+2);
+				vn=0;
+			}
+
+			if(doLog && size>0 && sc.consumed>=nextLog) {
+				UUtil.log(m.faceNum+" faces read, "+
+						progress.update(null, 100f*sc.consumed/size));
+				nextLog+=size/10;
+			}
+		}
+
+		if(vn>0) UUtil.log("Ignoring "+vn+" vertices at end of file.");
+		m.vertNum=m.faceNum*3;
+		m.calcNormals();
+		if(doLog) UUtil.log("Faces read: "+m.faceNum);
+		return m;
+	}
+
+	private static final byte VERTEX[]="vertex".getBytes();
+	private static final double POW10[]=new double[23];
+	static {
+		POW10[0]=1;
+		for(int i=1; i<POW10.length; i++) POW10[i]=POW10[i-1]*10;
+	}
+
+	/**
+	 * Splits a byte stream into whitespace-separated tokens and parses
+	 * numbers directly from the bytes. Tokens are read into a reusable 
+	 * buffer, so no objects are created per token.
+	 */
+	public static class Scanner {
+		InputStream in;
+		byte buf[]=new byte[1<<16];
+		int pos,lim,start,end;
+		/**
+		 * Number of bytes read from the stream so far.
+		 */
+		public long consumed;
+
+		public Scanner(InputStream in) {
+			this.in=in;
+		}
+
+		/**
+		 * Advances to the next token.
+		 * @return false at end of stream
+		 * @throws IOException
+		 */
+		public boolean next() throws IOException {
+			while(true) {
+				if(pos==lim) {
+					start=lim;
+					if(!fill()) return false;
+				}
+				if((buf[pos]&0xff)>' ') break;
+				pos++;
+			}
+
+			start=pos;
+			while(true) {
+				if(pos==lim && !fill()) break;
+				if((buf[pos]&0xff)<=' ') break;
+				pos++;
+			}
+			end=pos;
+			return true;
+		}
+
+		// Reads more data, keeping the token from start onward in the buffer
+		private boolean fill() throws IOException {
+			if(start>0) {
+				System.arraycopy(buf, start, buf, 0, lim-start);
+				pos-=start;
+				lim-=start;
+				start=0;
+			}
+			if(lim==buf.length) {
+				byte tmp[]=new byte[buf.length*2];
+				System.arraycopy(buf, 0, tmp, 0, lim);
+				buf=tmp;
+			}
+
+			int n=in.read(buf, lim, buf.length-lim);
+			if(n<=0) return false;
+			lim+=n;
+			consumed+=n;
+			return true;
+		}
+
+		/**
+		 * Returns true if the current token equals a lowercase ASCII word,
+		 * ignoring case.
+		 */
+		public boolean is(byte word[]) {
+			if(end-start!=word.length) return false;
+			for(int i=0; i<word.length; i++)
+				if((buf[start+i]|0x20)!=word[i]) return false;
+			return true;
+		}
+
+		/**
+		 * Current token as String.
+		 */
+		public String token() {
+			return new String(buf, start, end-start, StandardCharsets.ISO_8859_1);
+		}
+
+		/**
+		 * Advances to the next token and parses it as a float.
+		 * @throws IOException if the stream ends or the token is not a number
+		 */
+		public float nextFloat() throws IOException {
+			if(!next()) throw new EOFException("Number expected at end of STL data.");
+			return parseFloat();
+		}
+
+		/**
+		 * Parses the current token as a float, giving the same result as
+		 * <code>Float.parseFloat()</code>. Plain decimal numbers of up to 18
+		 * digits are converted from the bytes, anything else falls back to
+		 * <code>Float.parseFloat()</code>.
+		 * @throws IOException if the token is not a number
+		 */
+		public float parseFloat() throws IOException {
+			int i=start;
+			boolean neg=false;
+			if(i<end && (buf[i]=='-' || buf[i]=='+')) neg=(buf[i++]=='-');
+
+			long mant=0;
+			int digits=0,exp=0;
+			boolean any=false;
+			for(; i<end; i++) {
+				int c=buf[i]-'0';
+				if(c<0 || c>9) break;
+				any=true;
+				if(mant>0 || c>0) digits++;
+				mant=mant*10+c;
+				if(digits>18) return slowFloat();
+			}
+			if(i<end && buf[i]=='.') {
+				for(i++; i<end; i++) {
+					int c=buf[i]-'0';
+					if(c<0 || c>9) break;
+					any=true;
+					if(mant>0 || c>0) digits++;
+					mant=mant*10+c;
+					exp--;
+					if(digits>18) return slowFloat();
+				}
+			}
+			if(!any) return slowFloat();
+
+			if(i<end && (buf[i]|0x20)=='e') {
+				i++;
+				boolean eneg=false;
+				if(i<end && (buf[i]=='-' || buf[i]=='+')) eneg=(buf[i++]=='-');
+				int e=0;
+				boolean edigit=false;
+				for(; i<end; i++) {
+					int c=buf[i]-'0';
+					if(c<0 || c>9) break;
+					edigit=true;
+					if(e<10000) e=e*10+c;
+				}
+				if(!edigit) return slowFloat();
+				exp+=(eneg ? -e : e);
+			}
+			if(i!=end) return slowFloat();
+
+			if(mant==0) return (neg ? -0f : 0f);
+			if(mant>=(1l<<53) || exp<-22 || exp>22) return slowFloat();
+
+			// mant and 10^exp are exact doubles, so d is correctly rounded.
+			// Rounding d to float is only unsafe if d lies exactly halfway
+			// between two floats.
+			double d=(exp<0 ? mant/POW10[-exp] : mant*POW10[exp]);
+			if((Double.doubleToRawLongBits(d) & 0x1fffffffl)==0x10000000l) 
+				return slowFloat();
+			float f=(float)d;
+			return (neg ? -f : f);
+		}
+
+		private float slowFloat() throws IOException {
+			try {
+				return Float.parseFloat(token());
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad number in STL data: "+token());
+			}
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package unlekker.modelbuilder;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.*;
+
+import unlekker.util.*;
+
+/**
+ * Binary STL writer. Triangle records are encoded into a large direct
+ * ByteBuffer which is written to a FileChannel when full, so a file is
+ * written in a few large writes instead of one per triangle. The header
+ * and the first block go out together as a gathering write.
+ * <p>
+ * Missing face normals are calculated in bulk before writing:
+ * <code>updateFaceNormals()</code> for UFace geometry, the normal kernel for
+ * compact meshes and per chunk for streamed triangles.
+ * <p>
+ * Used by <code>UGeometry.writeSTL()</code>. It is also a
+ * {@link UTriangleSink}, for writing {@link UTriangleStream} output, in which
+ * case the triangle count is filled in when the stream ends:
+ * <p>
+ * <code>USTLWriter out=new USTLWriter(new File("/tmp/out.stl"));<br>
+ * out.begin();<br>
+ * out.add(geo1).add(geo2);<br>
+ * out.end();</code>
+ * <p>
+ * <code>writeAsync()</code> exports in the background. It takes a
+ * {@link UGeometrySnapshot} on the calling thread and writes it on an 
+ * export thread, so the live model can be changed or drawn meanwhile.
+ * The result is a <code>CompletableFuture</code>, which Java code can chain
+ * further steps onto. Sketches can pass a {@link Listener} instead.
+ */
+public class USTLWriter implements UTriangleSink, Closeable {
+	/**
+	 * Triangles per write buffer. Each triangle takes 50 bytes.
+	 */
+	public static int bufferSize=1<<16;
+
+	public File file;
+	public long faceNum;
+	public boolean doLog=true;
+
+	private FileChannel ch;
+	private ByteBuffer header,buf;
+	private float normal[];
+
+	public USTLWriter(File file) {
+		this.file=file;
+	}
+
+	/**
+	 * Opens the file. The triangle count is written by <code>end()</code>.
+	 */
+	public void begin() throws IOException {
+		File dir=file.getAbsoluteFile().getParentFile();
+		if(dir!=null) dir.mkdirs();
+
+		ch=new FileOutputStream(file).getChannel();
+		header=ByteBuffer.allocate(84).order(ByteOrder.LITTLE_ENDIAN);
+		buf=ByteBuffer.allocateDirect(bufferSize*50).order(ByteOrder.LITTLE_ENDIAN);
+		faceNum=0;
+		if(doLog) UUtil.logDivider("Writing STL '"+file.getName()+"'");
+	}
+
+	/**
+	 * Writes n triangles given as 9 floats each, calculating their normals.
+	 */
+	public void add(float tri[],int n) throws IOException {
+		if(normal==null || normal.length<n*3) normal=new float[n*3];
+		final float t[]=tri,res[]=normal;
+		UParallel.run(n, new UParallel.Range() {
+			public void run(int start,int end) {
+				for(int i=start; i<end; i++) triangleNormal(t, i*9, res, i*3);
+			}
+		});
+
+		for(int i=0; i<n; i++) {
+			if(buf.remaining()<50) flush();
+			buf.putFloat(normal[i*3]);
+			buf.putFloat(normal[i*3+1]);
+			buf.putFloat(normal[i*3+2]);
+			for(int j=0; j<9; j++) buf.putFloat(tri[i*9+j]);
+			buf.putShort((short)0);
+		}
+		faceNum+=n;
+	}
+
+	/**
+	 * Writes all faces of a UGeometry, in compact or object form.
+	 */
+	public USTLWriter add(UGeometry g) throws IOException {
+		g.flushTransforms();
+
+		if(g.mesh!=null) {
+			UCompactMesh m=g.mesh;
+			if(m.normal==null) m.calcNormals();
+			float pos[]=m.pos,nrm[]=m.normal;
+			int tri[]=m.tri;
+
+			for(int i=0; i<m.faceNum; i++) {
+				if(buf.remaining()<50) flush();
+				buf.putFloat(nrm[i*3]);
+				buf.putFloat(nrm[i*3+1]);
+				buf.putFloat(nrm[i*3+2]);
+				for(int j=0; j<3; j++) {
+					int id=tri[i*3+j]*3;
+					buf.putFloat(pos[id]);
+					buf.putFloat(pos[id+1]);
+					buf.putFloat(pos[id+2]);
+				}
+				buf.putShort((short)0);
+			}
+			faceNum+=m.faceNum;
+			return this;
+		}
+
+		g.updateFaceNormals();
+		UVec3 v[]=g.vert.v;
+		for(int i=0; i<g.faceNum; i++) {
+			if(buf.remaining()<50) flush();
+			UFace f=g.face[i];
+			UVec3 n=f.getNormal();
+			buf.putFloat(n.x);
+			buf.putFloat(n.y);
+			buf.putFloat(n.z);
+			for(int j=0; j<3; j++) {
+				UVec3 vv=v[f.vid[j]];
+				buf.putFloat(vv.x);
+				buf.putFloat(vv.y);
+				buf.putFloat(vv.z);
+			}
+			buf.putShort((short)0);
+		}
+		faceNum+=g.faceNum;
+		return this;
+	}
+
+	/**
+	 * Writes remaining data and the triangle count, and closes the file.
+	 */
+	public void end() throws IOException {
+		flush();
+		ByteBuffer count=ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		count.putInt(0, (int)Math.min(faceNum, 0xffffffffL));
+		ch.write(count, 80);
+		close();
+		if(doLog) UUtil.log("Closing '"+file.getName()+"'. "+faceNum+" triangles written.\n");
+	}
+
+	/**
+	 * Closes the file without writing the triangle count, if it is still 
+	 * open. Call from a <code>finally</code> block so the file handle isn't 
+	 * leaked when writing fails. Does nothing after <code>end()</code>.
+	 */
+	public void close() throws IOException {
+		buf=null;
+		header=null;
+		if(ch==null) return;
+		FileChannel c=ch;
+		ch=null;
+		c.close();
+	}
+
+	private void flush() throws IOException {
+		buf.flip();
+		if(header!=null) {
+			// first block: header (count filled in by end()) and data together
+			ByteBuffer both[]={header,buf};
+			while(header.hasRemaining() || buf.hasRemaining()) ch.write(both);
+			header=null;
+		}
+		else while(buf.hasRemaining()) ch.write(buf);
+		buf.clear();
+	}
+
+	/**
+	 * Writes a list of models to one binary STL file.
+	 */
+	public static void write(File file,UGeometry geo[]) throws IOException {
+		USTLWriter out=new USTLWriter(file);
+		try {
+			out.begin();
+			for(int i=0; i<geo.length; i++) if(geo[i]!=null) out.add(geo[i]);
+			out.end();
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	// Same arithmetic as UFace.calcNormal()
+	static void triangleNormal(float tri[],int id,float n[],int nid) {
+		float ax=tri[id+3]-tri[id],ay=tri[id+4]-tri[id+1],az=tri[id+5]-tri[id+2];
+		float bx=tri[id+6]-tri[id],by=tri[id+7]-tri[id+1],bz=tri[id+8]-tri[id+2];
+		float nx=ay*bz-az*by,ny=az*bx-ax*bz,nz=ax*by-ay*bx;
+		float l=(float)Math.sqrt(nx*nx+ny*ny+nz*nz);
+		if(l>0) {nx/=l; ny/=l; nz/=l;}
+		n[nid]=nx;
+		n[nid+1]=ny;
+		n[nid+2]=nz;
+	}
+
+	/////////////////////////////////////////////////////////
+	// ASYNCHRONOUS EXPORT
+
+	/**
+	 * Receives the outcome of an asynchronous export, for sketches that 
+	 * can't use lambdas with the returned CompletableFuture. Methods are 
+	 * called on the export thread, so they should only set flags or print 
+	 * messages, not draw or change the model.
+	 */
+	public interface Listener {
+		public void exportDone(File file,long faceNum);
+		public void exportFailed(File file,Exception e);
+	}
+
+	private static ExecutorService executor;
+
+	/**
+	 * Sets the executor running asynchronous exports. By default a single
+	 * daemon thread runs them one at a time, in the order they were made.
+	 */
+	public static synchronized void setExecutor(ExecutorService e) {
+		executor=e;
+	}
+
+	public static synchronized ExecutorService getExecutor() {
+		if(executor==null) executor=Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t=new Thread(r, "USTLWriter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		return executor;
+	}
+
+	/**
+	 * Writes a snapshot of g to a binary STL file in the background. The
+	 * snapshot is taken before returning, later changes to g don't affect
+	 * the file.
+	 * @param file
+	 * @param g
+	 * @param l Listener notified when the file is written or writing
+	 * failed, may be <code>null</code>
+	 * @return Future completed with the file, or with the exception that 
+	 * made the export fail. The file is closed before it completes.
+	 */
+	public static CompletableFuture<File> writeAsync(final File file,UGeometry g,final Listener l) {
+		final UGeometry snap=g.getSnapshot().toGeometry();
+		final CompletableFuture<File> res=new CompletableFuture<File>();
+
+		getExecutor().execute(new Runnable() {
+			public void run() {
+				USTLWriter out=new USTLWriter(file);
+				try {
+					try {
+						out.begin();
+						out.add(snap);
+						out.end();
+					}
+					finally {
+						out.close();
+					}
+					if(l!=null) l.exportDone(file, out.faceNum);
+					res.complete(file);
+				} catch (Exception e) {
+					if(l!=null) l.exportFailed(file, e);
+					else e.printStackTrace();
+					res.completeExceptionally(e);
+				}
+			}
+		});
+		return res;
+	}
+}
@@ -0,0 +1,26 @@
+package unlekker.modelbuilder;
+
+import java.io.IOException;
+
+/**
+ * Receives triangles in chunks, as the end of a {@link UTriangleStream} or
+ * as one of its stages.
+ */
+public interface UTriangleSink {
+	/**
+	 * Called once before the first chunk.
+	 */
+	public void begin() throws IOException;
+
+	/**
+	 * Receives n triangles, stored as 9 floats each (three x,y,z vertices).
+	 * The array is reused for the next chunk, so sinks must copy any data
+	 * they want to keep. Stages may modify it in place.
+	 */
+	public void add(float tri[],int n) throws IOException;
+
+	/**
+	 * Called once after the last chunk.
+	 */
+	public void end() throws IOException;
+}
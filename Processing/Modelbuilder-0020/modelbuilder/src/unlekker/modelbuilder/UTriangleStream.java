@@ -0,0 +1,192 @@
+package unlekker.modelbuilder;
+
+import java.io.*;
+import java.util.ArrayList;
+
+import processing.core.PApplet;
+import unlekker.modelbuilder.filter.UFilter;
+import unlekker.util.*;
+
+/**
+ * Processes an STL file as a stream of triangles, so that models larger
+ * than the Java heap can be transformed and saved. Triangles are read in
+ * chunks of <code>chunkSize</code> by {@link USTLReader}, passed through a
+ * chain of stages and handed to a sink, such as an STL file. Memory use
+ * depends on the chunk size only.
+ * <p>
+ * Stages are matrix transformations and vertex filters like
+ * {@link unlekker.modelbuilder.filter.UTransformDeform UTransformDeform} and
+ * {@link unlekker.modelbuilder.filter.UTransformAttractor UTransformAttractor}.
+ * Filters see one chunk at a time, so filters that depend on the bounds of
+ * the whole model need to be given them. <code>bounds()</code> gets them
+ * with an extra pass over the file:
+ * <p>
+ * <code>UTriangleStream in=new UTriangleStream(this, "scan.stl");<br>
+ * UBBox bb=in.bounds();<br>
+ * in.filter(new UTransformDeform().bend(HALF_PI).setBounds(bb));<br>
+ * in.transform(new UMatrix().rotateX(HALF_PI));<br>
+ * in.writeSTL(this, "scanBent.stl");</code>
+ * <p>
+ * Face normals are recalculated when the stream is written. Face colors and
+ * other attributes are not kept.
+ */
+public class UTriangleStream {
+	/**
+	 * Triangles per chunk.
+	 */
+	public static int chunkSize=1<<16;
+
+	public File file;
+	public boolean doLog=true;
+	private ArrayList<Stage> stages=new ArrayList<Stage>();
+
+	/**
+	 * Creates stream reading from an STL file. Relative paths are resolved
+	 * with <code>p.savePath()</code>.
+	 * @param p Parent PApplet, may be <code>null</code> if path is absolute
+	 * @param path
+	 */
+	public UTriangleStream(PApplet p,String path) {
+		file=new File(path);
+		if(!file.isAbsolute() && p!=null) file=new File(p.savePath(path));
+	}
+
+	/**
+	 * Adds stage applying a transformation matrix to all vertices.
+	 */
+	public UTriangleStream transform(final UMatrix m) {
+		return add(new Stage() {
+			public void add(float tri[],int n) throws IOException {
+				m.apply(tri, n*3);
+				next.add(tri, n);
+			}
+		});
+	}
+
+	/**
+	 * Adds stage applying a vertex filter, calling its
+	 * <code>transform(UVec3[],int)</code> method once per chunk.
+	 */
+	public UTriangleStream filter(final UFilter f) {
+		return add(new Stage() {
+			UVec3 v[]=UVec3.getVec3(chunkSize*3);
+
+			public void add(float tri[],int n) throws IOException {
+				if(v.length<n*3) v=UVec3.getVec3(n*3);
+				for(int i=0; i<n*3; i++) v[i].set(tri[i*3],tri[i*3+1],tri[i*3+2]);
+				f.transform(v, n*3);
+				for(int i=0; i<n*3; i++) {
+					tri[i*3]=v[i].x;
+					tri[i*3+1]=v[i].y;
+					tri[i*3+2]=v[i].z;
+				}
+				next.add(tri, n);
+			}
+		});
+	}
+
+	/**
+	 * Adds custom stage. Stages are run in the order they were added.
+	 */
+	public UTriangleStream add(Stage s) {
+		stages.add(s);
+		return this;
+	}
+
+	/**
+	 * Streams all triangles through the stages to a sink.
+	 * @return Number of triangles processed
+	 */
+	public long run(UTriangleSink sink) {
+		for(int i=stages.size()-1; i>=0; i--) {
+			stages.get(i).next=sink;
+			sink=stages.get(i);
+		}
+
+		try {
+			USTLReader reader=new USTLReader();
+			reader.doLog=doLog;
+			return reader.stream(file, chunkSize, sink);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("UTriangleStream failed: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes the stream to a binary STL file with {@link USTLWriter}.
+	 * @return Number of triangles written
+	 */
+	public long writeSTL(PApplet p,String filename) {
+		if(!filename.toLowerCase().endsWith("stl")) filename+=".stl";
+		File out=new File(filename);
+		if(!out.isAbsolute() && p!=null) out=new File(p.sketchPath(filename));
+		USTLWriter writer=new USTLWriter(out);
+		try {
+			return run(writer);
+		}
+		finally {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Calculates the bounding box of the triangles output by the stages
+	 * added so far, with a pass over the whole file.
+	 */
+	public UBBox bounds() {
+		final UBBox bb=new UBBox();
+		run(new UTriangleSink() {
+			public void begin() {}
+			public void end() {}
+			public void add(float tri[],int n) {
+				for(int i=0; i<n*9; i+=3) bb.add(tri[i],tri[i+1],tri[i+2]);
+			}
+		});
+		return bb.finishCalc();
+	}
+
+	/**
+	 * Reads the stream into compact geometry. Only useful for output that
+	 * fits in memory, such as previews of a transformed model.
+	 */
+	public UGeometry toGeometry() {
+		final UCompactMesh m=new UCompactMesh(chunkSize*3,chunkSize);
+		run(new UTriangleSink() {
+			public void begin() {}
+			public void end() {}
+			public void add(float tri[],int n) {
+				int id=m.vertNum;
+				m.ensureCapacity(m.vertNum+n*3, m.faceNum+n);
+				System.arraycopy(tri, 0, m.pos, id*3, n*9);
+				m.vertNum+=n*3;
+				for(int i=0; i<n; i++,id+=3) m.addFace(id, id+1, id+2);
+			}
+		});
+		m.calcNormals();
+
+		UGeometry g=new UGeometry();
+		g.setMesh(m);
+		return g;
+	}
+
+	/**
+	 * A step in a triangle stream, which processes each chunk and passes it
+	 * on to <code>next</code>. Subclasses implement <code>add()</code>.
+	 */
+	public abstract static class Stage implements UTriangleSink {
+		protected UTriangleSink next;
+
+		public void begin() throws IOException {
+			next.begin();
+		}
+
+		public void end() throws IOException {
+			next.end();
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package unlekker.modelbuilder;
+
+import unlekker.util.*;
+
+/**
+ * Spatial hash used by {@link UVertexList} to find matching vertices without
+ * scanning the whole list. Space is divided into cubic cells the size of the
+ * match tolerance and each vertex ID is stored in the bucket of its cell, so a
+ * vertex can only match vertices in its own cell or the 26 surrounding ones.
+ * <p>
+ * The index only holds vertex IDs, positions are always read from the vertex
+ * list. It indexes new vertices lazily as they are appended, but has to be
+ * rebuilt with <code>clear()</code> if existing vertices move or the list is
+ * reordered.
+ */
+public class UVertexIndex {
+	/**
+	 * Match tolerance. Two vertices match if they are identical or closer
+	 * than <code>epsilon</code>.
+	 */
+	public float epsilon;
+
+	private float epsSq;
+	private double invCell;
+	private int head[],next[],mask;
+	/**
+	 * Number of vertices currently in the index, always the first
+	 * <code>num</code> entries of the vertex list.
+	 */
+	public int num;
+
+	/**
+	 * Creates an index with the same tolerance as {@link UVec3#cmp(UVec3)}.
+	 */
+	public UVertexIndex() {
+		this(0.1f);
+	}
+
+	public UVertexIndex(float epsilon) {
+		this.epsilon=epsilon;
+		// the default matches the hard-coded tolerance in UVec3.cmp() exactly
+		epsSq=(epsilon==0.1f ? 0.01f : epsilon*epsilon);
+		// cells are made a hair larger than epsilon so that float rounding 
+		// can never put two matching vertices more than one cell apart.
+		// Zero tolerance still needs a finite cell size.
+		invCell=(epsilon>0 ? 1.0/(epsilon*1.0001) : 1);
+		head=new int[256];
+		next=new int[256];
+		mask=head.length-1;
+		clear();
+	}
+
+	/**
+	 * Empties the index, so that it will be rebuilt on the next lookup.
+	 */
+	public void clear() {
+		for(int i=0; i<head.length; i++) head[i]=-1;
+		num=0;
+	}
+
+	/**
+	 * Returns the lowest ID of a vertex in the list that matches vv, or -1
+	 * if there is none. Gives the same result as a linear search using the
+	 * same tolerance.
+	 * @param vl Vertex list being indexed
+	 * @param vv Vertex to look for
+	 * @return Vertex ID, or -1
+	 */
+	public int find(UVertexList vl,UVec3 vv) {
+		update(vl);
+
+		int cx=cell(vv.x),cy=cell(vv.y),cz=cell(vv.z);
+		int found=-1;
+		UVec3 v[]=vl.v;
+
+		for(int x=cx-1; x<=cx+1; x++)
+			for(int y=cy-1; y<=cy+1; y++)
+				for(int z=cz-1; z<=cz+1; z++) {
+					for(int id=head[hash(x,y,z)]; id!=-1; id=next[id]) {
+						if((found==-1 || id<found) && matches(v[id],vv)) found=id;
+					}
+				}
+
+		return found;
+	}
+
+	/**
+	 * Brings the index up to date with the vertex list. New vertices at the
+	 * end of the list are added, if the list has shrunk the index is rebuilt 
+	 * from scratch.
+	 * @param vl
+	 */
+	public void update(UVertexList vl) {
+		if(vl.n<num) clear();
+
+		if(next.length<vl.n) next=UUtil.expandArray(next, vl.v.length);
+		if(vl.n>head.length/2) rehash(vl.n,vl.v);
+
+		while(num<vl.n) insert(num++,vl.v);
+	}
+
+	private void rehash(int n,UVec3 v[]) {
+		int size=head.length;
+		while(size<n*2) size*=2;
+
+		head=new int[size];
+		mask=size-1;
+		for(int i=0; i<size; i++) head[i]=-1;
+
+		int oldNum=num;
+		for(num=0; num<oldNum; num++) insert(num,v);
+	}
+
+	private void insert(int id,UVec3 v[]) {
+		int h=hash(cell(v[id].x),cell(v[id].y),cell(v[id].z));
+		next[id]=head[h];
+		head[h]=id;
+	}
+
+	private boolean matches(UVec3 a,UVec3 b) {
+		if(a.x-b.x==0 && a.y-b.y==0 && a.z-b.z==0) return true;
+
+		float xd=a.x-b.x;
+		float yd=a.y-b.y;
+		float zd=a.z-b.z;
+		return (xd*xd+yd*yd+zd*zd)<epsSq;
+	}
+
+	private int cell(float f) {
+		return (int)Math.floor((double)f*invCell);
+	}
+
+	private int hash(int x,int y,int z) {
+		int h=x*73856093 ^ y*19349663 ^ z*83492791;
+		return (h ^ (h>>>16)) & mask;
+	}
+}
@@ -41,6 +41,13 @@ public class UVertexList implements UConstants {
 	public boolean doColor,doNoDuplicates,isClosed;
 	
 	private float ptDist[];
+	/**
+	 * Spatial hash used by <code>getID()</code> and duplicate checks. Built on
+	 * first use. Call {@link #reindex()} after changing vertices in 
+	 * <code>v</code> directly.
+	 */
+	private UVertexIndex index;
+	private float weldEpsilon=0.1f;
 
 	/**
 	 * Creates empty vertex list.
@@ -180,6 +187,7 @@ public class UVertexList implements UConstants {
 		
 		v=tmp.v;
 		n=tmp.n;
+		reindex();
 		
 		return this;
 	}
@@ -455,6 +463,7 @@ public class UVertexList implements UConstants {
 		System.arraycopy(v, id, v, id+1, n-id);
 		v[id]=new UVec3(x,y,z);	
 		n++;
+		reindex();
 		
 		return this;
 	}
@@ -502,11 +511,9 @@ public class UVertexList implements UConstants {
 	}
 	
 	public UVertexList add(UVec3 _v) {
-		if(doNoDuplicates) {
-			for(int i=0; i<n; i++) if(v[i].cmp(_v)) {
-//				UUtil.log("Duplicate");
-				return this;
-			}
+		if(doNoDuplicates && getID(_v)!=-1) {
+//			UUtil.log("Duplicate");
+			return this;
 		}
 		
 		if(n==v.length) {
@@ -524,6 +531,26 @@ public class UVertexList implements UConstants {
 		for(int i=0; i<_n; i++) add(_v[i]);
 		return this;
 	}
+
+	/**
+	 * Appends copies of the first <code>_n</code> vertices in <code>_v</code>, 
+	 * growing the array once and skipping the duplicate check.
+	 * @param _v
+	 * @param _n
+	 * @return
+	 */
+	public UVertexList addAll(UVec3 _v[],int _n) {
+		if(v.length<n+_n) {
+			v=(UVec3[])UUtil.expandArray(v, Math.max(v.length*2, n+_n));
+			if(doColor) vertexCol=UUtil.expandArray(vertexCol, v.length);
+		}
+		
+		for(int i=0; i<_n; i++) {
+			if(doColor) vertexCol[n]=currCol;
+			v[n++]=new UVec3(_v[i]);
+		}
+		return this;
+	}
 	
 
 	public UVertexList add(UVec3[] vv) {
@@ -540,6 +567,7 @@ public class UVertexList implements UConstants {
 	}
 
 	public UVertexList removeLast() {
+		reindex();
 		n--;
 		return this;
 	}
@@ -558,6 +586,7 @@ public class UVertexList implements UConstants {
 		}
 		System.arraycopy(v, _id, v, _id+_num, _num);
 		n-=_num;
+		reindex();
 		return this;
 	}
 
@@ -579,6 +608,7 @@ public class UVertexList implements UConstants {
 		
 		v=vlnew.v;
 		n=vlnew.n;
+		reindex();
 		return id;
 	}
 	
@@ -600,6 +630,30 @@ public class UVertexList implements UConstants {
 		return this;
 	}
 
+	/**
+	 * Sets the tolerance used to decide whether two vertices are duplicates. 
+	 * Vertices match if they are identical or closer than <code>eps</code>. 
+	 * The default of 0.1 is the same as {@link UVec3#cmp(UVec3)}.
+	 * @param eps
+	 * @return
+	 */
+	public UVertexList setWeldEpsilon(float eps) {
+		weldEpsilon=eps;
+		index=null;
+		return this;
+	}
+
+	/**
+	 * Discards the spatial index used to find duplicate vertices, so that it
+	 * is rebuilt on the next lookup. Must be called if vertices in 
+	 * <code>v</code> are moved by code outside this class.
+	 * @return
+	 */
+	public UVertexList reindex() {
+		if(index!=null) index.clear();
+		return this;
+	}
+
 	public UVertexList addMidPoints() {
 		UVertexList nv=new UVertexList();
 		
@@ -613,6 +667,7 @@ public class UVertexList implements UConstants {
 		bb=null;
 		n=nv.n;
 		v=nv.v;
+		reindex();
 		
 		return this;
 	}
@@ -810,13 +865,30 @@ public class UVertexList implements UConstants {
 	/////////////////////////////////////////////////////////
 	// TRANSFORMATIONS
 	
+	/**
+	 * Applies an affine transformation matrix to all vertices in one pass.
+	 * @param m Transformation to apply
+	 * @return Returns reference to self 
+	 */
+	public UVertexList transform(UMatrix m) {
+		reindex();
+		m.apply(v,n);
+		if(bb!=null) calcBounds();
+		return this;
+	}
+
 	/**
 	 * Rotates vertices in list around X axis
 	 * @param a Angle to rotate by.
 	 * @return Returns reference to self 
 	 */
-	public UVertexList rotateX(float a) {
-		for(int i=0; i<n; i++) v[i].rotateX(a);
+	public UVertexList rotateX(final float a) {
+		reindex();
+		UParallel.run(n, new UParallel.Range() {
+			public void run(int start,int end) {
+				for(int i=start; i<end; i++) v[i].rotateX(a);
+			}
+		});
 		if(bb!=null) calcBounds();
 		return this;
 	}
@@ -826,8 +898,13 @@ public class UVertexList implements UConstants {
 	 * @param a Angle to rotate by.
 	 * @return Returns reference to self 
 	 */
-	public UVertexList rotateY(float a) {
-		for(int i=0; i<n; i++) v[i].rotateY(a);
+	public UVertexList rotateY(final float a) {
+		reindex();
+		UParallel.run(n, new UParallel.Range() {
+			public void run(int start,int end) {
+				for(int i=start; i<end; i++) v[i].rotateY(a);
+			}
+		});
 		if(bb!=null) calcBounds();
 		return this;
 	}
@@ -837,8 +914,13 @@ public class UVertexList implements UConstants {
 	 * @param a Angle to rotate by.
 	 * @return Returns reference to self 
 	 */
-	public UVertexList rotateZ(float a) {
-		for(int i=0; i<n; i++) v[i].rotateZ(a);
+	public UVertexList rotateZ(final float a) {
+		reindex();
+		UParallel.run(n, new UParallel.Range() {
+			public void run(int start,int end) {
+				for(int i=start; i<end; i++) v[i].rotateZ(a);
+			}
+		});
 		if(bb!=null) calcBounds();
 		return this;
 	}
@@ -857,8 +939,13 @@ public class UVertexList implements UConstants {
 	 * @param _v Vector to add.
 	 * @return
 	 */
-	public UVertexList translate(UVec3 _v) {
-		for(int i=0; i<n; i++) v[i].add(_v);
+	public UVertexList translate(final UVec3 _v) {
+		reindex();
+		UParallel.run(n, new UParallel.Range() {
+			public void run(int start,int end) {
+				for(int i=start; i<end; i++) v[i].add(_v);
+			}
+		});
 		if(bb!=null) bb.translate(_v);
 		return this;
 	}
@@ -867,8 +954,13 @@ public class UVertexList implements UConstants {
 	 * Translates all vertices by adding x,y,z to each vertex. 
 	 * @return
 	 */
-	public UVertexList translate(float x,float y,float z) {
-		for(int i=0; i<n; i++) v[i].add(x,y,z);
+	public UVertexList translate(final float x,final float y,final float z) {
+		reindex();
+		UParallel.run(n, new UParallel.Range() {
+			public void run(int start,int end) {
+				for(int i=start; i<end; i++) v[i].add(x,y,z);
+			}
+		});
 		if(bb!=null) bb.translate(x,y,z);
 		return this;
 	}
@@ -888,8 +980,13 @@ public class UVertexList implements UConstants {
 	 * @param m Factor to scale by.
 	 * @return Returns reference to self 
 	 */
-	public UVertexList scale(float m) {
-		for(int i=0; i<n; i++) v[i].mult(m);
+	public UVertexList scale(final float m) {
+		reindex();
+		UParallel.run(n, new UParallel.Range() {
+			public void run(int start,int end) {
+				for(int i=start; i<end; i++) v[i].mult(m);
+			}
+		});
 		if(bb!=null) bb.scale(m);
 		return this;
 	}
@@ -901,8 +998,13 @@ public class UVertexList implements UConstants {
 	 * @param mz Factor to scale Z values.
 	 * @return Returns reference to self 
 	 */
-	public UVertexList scale(float mx,float my,float mz) {
-		for(int i=0; i<n; i++) v[i].mult(mx,my,mz);
+	public UVertexList scale(final float mx,final float my,final float mz) {
+		reindex();
+		UParallel.run(n, new UParallel.Range() {
+			public void run(int start,int end) {
+				for(int i=start; i<end; i++) v[i].mult(mx,my,mz);
+			}
+		});
 		if(bb!=null) bb.scale(mx, my, mz);
 		return this;
 	}
@@ -945,6 +1047,7 @@ public class UVertexList implements UConstants {
 	 * @return Returns reference to self 
 	 */
 	public UVertexList reset() {
+		reindex();
 		n=0;
 		bb=null;
 		return this;
@@ -1024,6 +1127,7 @@ public class UVertexList implements UConstants {
 	 * @return Returns reference to self 
 	 */
 	public UVertexList reverseOrder() {
+		reindex();
 		UVec3 u[]=new UVec3[n];
 		for(int i=0; i<n; i++) u[i]=v[n-1-i];
 		v=u;		
@@ -1048,6 +1152,7 @@ public class UVertexList implements UConstants {
 		
 		n=vlOld.n;		
 		bb=null;
+		reindex();
 
 		if(vlOld.doColor) {
 			doColor=true;
@@ -1065,10 +1170,8 @@ public class UVertexList implements UConstants {
 	 * @return
 	 */
 	public int getID(UVec3 vv) {
-		for(int i=0; i<n; i++) if(vv.cmp(v[i])) return i;
-		
-		// no match found
-		return -1;
+		if(index==null) index=new UVertexIndex(weldEpsilon);
+		return index.find(this,vv);
 	}
 
 	/**
@@ -53,20 +53,33 @@ public class UFilter implements UConstants {
 	}
 
 	public void transform(UGeometry g) {
+		g.expand();
 		transform(g.vert);
-		
+		g.changed();
 	}
 
 	public void transform(UVertexList vl) {
 		transform(vl.v,vl.n);
+		vl.reindex();
 	}
 
+	/**
+	 * Transforms a single vertex. Called from <code>transform(UVec3[],int)</code>, 
+	 * which may run on several threads at once (see 
+	 * {@link unlekker.modelbuilder.UParallel UParallel}), so implementations 
+	 * must not modify shared state.
+	 * @param v
+	 */
 	protected void transform(UVec3 v) {
 		
 	}
 
-	public void transform(UVec3 v[],int n) {
-		for(int i=0; i<n; i++) transform(v[i]);
+	public void transform(final UVec3 v[],int n) {
+		UParallel.run(n, new UParallel.Range() {
+			public void run(int start,int end) {
+				for(int i=start; i<end; i++) transform(v[i]);
+			}
+		});
 	}
 
 	public void transform(UVec3 v[]) {
@@ -40,6 +40,7 @@ public class USubdivider extends UFilter {
 	}
 
 	public UGeometry subdivideConditional(UGeometry input) {
+		input.expand();
 		UGeometry g=new UGeometry();
 		if(input.doNoDuplicates) g.noDuplicates();
 		
@@ -69,6 +70,7 @@ public class USubdivider extends UFilter {
 	}
 	
 	public UGeometry build(UGeometry input) {
+		input.expand();
 		UProgressInfo prog=new UProgressInfo();
 		
 		UGeometry g=new UGeometry();
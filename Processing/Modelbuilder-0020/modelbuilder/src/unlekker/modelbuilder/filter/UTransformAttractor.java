@@ -49,21 +49,26 @@ public class UTransformAttractor extends UFilter {
 	}
 
 
-	private void handleAttractor(UVec3 pos,float force,float rad,UVec3 v[], int n) {
-		UVec3 vv,vforce=new UVec3();
+	private void handleAttractor(final UVec3 pos,final float force,final float rad,final UVec3 v[], int n) {
 		
 //		if(force>0) force=1+force;
 //		else force=-1+force;
 		
-		for(int j=0; j<n; j++) {
-			vv=v[j];
-			float d=pos.distanceTo(vv);
-			if(d<rad) {
-				d=1-d/rad;
-				vforce.set(pos).sub(vv).mult(d*d*force);
-				vv.add(vforce);
+		// vertices are independent, so ranges can run in parallel
+		UParallel.run(n, new UParallel.Range() {
+			public void run(int start,int end) {
+				UVec3 vv,vforce=new UVec3();
+				for(int j=start; j<end; j++) {
+					vv=v[j];
+					float d=pos.distanceTo(vv);
+					if(d<rad) {
+						d=1-d/rad;
+						vforce.set(pos).sub(vv).mult(d*d*force);
+						vv.add(vforce);
+					}
+				}
 			}
-		}
+		});
 	}
 
 }
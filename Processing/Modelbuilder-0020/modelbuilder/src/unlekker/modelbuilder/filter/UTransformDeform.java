@@ -19,7 +19,7 @@ import unlekker.util.UUtil;
  *
  */
 public class UTransformDeform extends UFilter {
-	private UBBox bb;
+	private UBBox bb,fixedBB;
 	
 	public UTransformDeform() {
 		super();		
@@ -50,8 +50,19 @@ public class UTransformDeform extends UFilter {
 		return this;
 	}
 	
+	/**
+	 * Uses the given bounds to calculate <code>t</code>, instead of the 
+	 * bounds of the vertices being transformed. Needed when a model is 
+	 * transformed in parts, as by {@link unlekker.modelbuilder.UTriangleStream 
+	 * UTriangleStream}. Pass <code>null</code> to go back to automatic bounds. 
+	 */
+	public UTransformDeform setBounds(UBBox bb) {
+		fixedBB=bb;
+		return this;
+	}
+	
 	public void transform(UVec3 v[], int n) {
-		bb=new UBBox().add(v,n).finishCalc();
+		bb=(fixedBB!=null ? fixedBB : new UBBox().add(v,n).finishCalc());
 		
 		int paramIndex=0;
 		for(int i=0; i<paramN; i++) {
@@ -62,43 +73,63 @@ public class UTransformDeform extends UFilter {
 		}
 	}
 
-	private void stack(UVec3[] v, int n, float x,float y,float z) {
-		float D,yd=bb.max.y-bb.min.y;
+	// Each deformation runs over the vertices with UParallel. D is 
+	// calculated exactly as in a serial loop, so results are identical.
+	
+	private void stack(final UVec3[] v, int n, final float x,final float y,final float z) {
+		final float miny=bb.min.y,yd=bb.max.y-bb.min.y;
 		
-		for(int i=0; i<n; i++) {
-			D=(v[i].y-bb.min.y)/yd;
-//			UUtil.log(i+" "+UUtil.nf(D)+" "+v[i].toString());
-			v[i].add(D*x,D*y,D*z);
-//			UUtil.log(i+" "+v[i].toString());
-		}
+		UParallel.run(n, new UParallel.Range() {
+			public void run(int start,int end) {
+				float D;
+				for(int i=start; i<end; i++) {
+					D=(v[i].y-miny)/yd;
+					v[i].add(D*x,D*y,D*z);
+				}
+			}
+		});
 	}
 
-	private void bend(UVec3[] v, int n, float a) {
-		float D,yd=bb.max.y-bb.min.y;
+	private void bend(final UVec3[] v, int n, final float a) {
+		final float miny=bb.min.y,yd=bb.max.y-bb.min.y;
 		
-		for(int i=0; i<n; i++) {
-			D=(v[i].y-bb.min.y)/yd;
-//			UUtil.log(i+" "+UUtil.nf(D)+" "+v[i].toString());
-			v[i].rotateZ(a*D);
-		}
+		UParallel.run(n, new UParallel.Range() {
+			public void run(int start,int end) {
+				float D;
+				for(int i=start; i<end; i++) {
+					D=(v[i].y-miny)/yd;
+					v[i].rotateZ(a*D);
+				}
+			}
+		});
 	}
 
-	private void twist(UVec3[] v, int n, float a) {
-		float D,yd=bb.max.y-bb.min.y;
+	private void twist(final UVec3[] v, int n, final float a) {
+		final float miny=bb.min.y,yd=bb.max.y-bb.min.y;
 		
-		for(int i=0; i<n; i++) {
-			D=(v[i].y-bb.min.y)/yd;
-			v[i].rotateY(a*D);
-		}
+		UParallel.run(n, new UParallel.Range() {
+			public void run(int start,int end) {
+				float D;
+				for(int i=start; i<end; i++) {
+					D=(v[i].y-miny)/yd;
+					v[i].rotateY(a*D);
+				}
+			}
+		});
 	}
 
-	private void taper(UVec3[] v, int n, float a) {
-		float D,yd=bb.max.y-bb.min.y;
+	private void taper(final UVec3[] v, int n, final float a) {
+		final float miny=bb.min.y,yd=bb.max.y-bb.min.y;
 		
-		for(int i=0; i<n; i++) {
-			D=(v[i].y-bb.min.y)/yd;
-			v[i].mult(1+a*D,1,1+a*D);
-		}
+		UParallel.run(n, new UParallel.Range() {
+			public void run(int start,int end) {
+				float D;
+				for(int i=start; i<end; i++) {
+					D=(v[i].y-miny)/yd;
+					v[i].mult(1+a*D,1,1+a*D);
+				}
+			}
+		});
 	}
 
 }
@@ -0,0 +1,172 @@
+// Latency benchmark for the serial -> model -> screen pipeline.
+//
+// Run the sketch with arguments to swap the board for a recorded trace:
+//
+//   replay=<file>   feed a trace recorded with record=<file> instead of the board
+//   speed=<N>       replay at N times real time, 0 = as fast as possible (default 1)
+//   record=<file>   record the live serial session to a trace
+//   report=<file>   also save the report to a file
+//   settle=<ms>     how long a cell has to be quiet before its change is
+//                   applied (default 0, see the Coalescer tab)
+//
+// Or for a simulated board (see the Simulator tab):
+//
+//   simulate=<name> build, flicker or ramp
+//   rate=<N>        events per second, 0 = as fast as possible (default 1000)
+//   events=<N>      stop after N events, 0 = never (default 100000)
+//   seed=<N>        random seed (default 1)
+//   rows=<N>        board size, also applies to a replay (default 8x8)
+//   columns=<N>
+//
+// When a replay or simulation finishes the sketch prints percentiles for
+// the time from a chunk arriving to its blocks being in the model, and for
+// frame times, then exits. Without a board or a display, e.g. on a build
+// server:
+//
+//   xvfb-run processing-java --sketch=cubecube_software --run replay=trace.txt speed=10
+//   xvfb-run processing-java --sketch=cubecube_software --run simulate=flicker rows=32 columns=32 rate=0
+
+//-- Collects samples in nanoseconds and reports percentiles.
+// Keeps the most recent samples once full, so it never allocates while running.
+class LatencyStats {
+  String name;
+  long[] sample;
+  int n;
+  long count;
+
+  LatencyStats(String name, int size) {
+    this.name = name;
+    sample = new long[size];
+  }
+
+  void add(long t) {
+    sample[(int) (count++ % sample.length)] = t;
+    if (n < sample.length) n++;
+  }
+
+  void reset() {
+    n = 0;
+    count = 0;
+  }
+
+  String report() {
+    if (n == 0) return name + ": no samples";
+
+    long[] s = new long[n];
+    System.arraycopy(sample, 0, s, 0, n);
+    java.util.Arrays.sort(s);
+
+    return name + ": n=" + count +
+      " p50=" + ms(percentile(s, 0.5f)) +
+      " p90=" + ms(percentile(s, 0.9f)) +
+      " p99=" + ms(percentile(s, 0.99f)) +
+      " p99.9=" + ms(percentile(s, 0.999f)) +
+      " max=" + ms(s[n - 1]) + " ms";
+  }
+
+  private long percentile(long[] s, float p) {
+    return s[min(n - 1, (int) (p * n))];
+  }
+
+  private String ms(long t) {
+    return nf(t / 1000000f, 1, 3);
+  }
+}
+
+class Benchmark {
+  String replayFile, recordFile, reportFile;
+  float speed = 1;
+  float settle = 0;
+
+  String scenario;
+  float rate = 1000;
+  long eventLimit = 100000;
+  long seed = 1;
+  int rows = numRows, columns = numColumns;
+
+  ByteSource source;
+  LatencyStats latency = new LatencyStats("event -> model update", 1 << 16);
+  LatencyStats frames = new LatencyStats("frame time", 1 << 16);
+
+  private long lastFrame = -1;
+  private long started;
+
+  //-- Reads name=value pairs from the sketch arguments.
+  Benchmark(String[] args) {
+    if (args == null) return;
+    for (int i = 0; i < args.length; i++) {
+      String[] tok = split(args[i], '=');
+      if (tok.length != 2) continue;
+      if (tok[0].equals("replay")) replayFile = tok[1];
+      else if (tok[0].equals("record")) recordFile = tok[1];
+      else if (tok[0].equals("report")) reportFile = tok[1];
+      else if (tok[0].equals("speed")) speed = float(tok[1]);
+      else if (tok[0].equals("settle")) settle = float(tok[1]);
+      else if (tok[0].equals("simulate")) scenario = tok[1];
+      else if (tok[0].equals("rate")) rate = float(tok[1]);
+      else if (tok[0].equals("events")) eventLimit = Long.parseLong(tok[1]);
+      else if (tok[0].equals("seed")) seed = Long.parseLong(tok[1]);
+      else if (tok[0].equals("rows")) rows = int(tok[1]);
+      else if (tok[0].equals("columns")) columns = int(tok[1]);
+    }
+  }
+
+  //-- The source the reader should use: a trace, a simulated board, or the
+  // board itself, optionally recorded.
+  ByteSource open(int port) {
+    started = System.nanoTime();
+
+    if (replayFile != null) {
+      TraceReplaySource replay = new TraceReplaySource(replayFile, speed);
+      println("Replaying " + replay.chunkNum + " chunks from " + replayFile + " at " + speed + "x");
+      source = replay;
+    }
+    else if (scenario != null) {
+      println("Simulating " + scenario + " on " + rows + "x" + columns + ", " +
+        eventLimit + " events at " + rate + "/s, seed " + seed);
+      source = new SimulatedBoard(scenario, rows, columns, rate, seed, eventLimit);
+    }
+    else {
+      println(Serial.list());
+      String portName = Serial.list()[port];
+      Serial serial = new Serial(cubecube_software.this, portName, 9600);
+      serial.clear();
+      source = new SerialSource(serial);
+    }
+
+    if (recordFile != null) source = new TraceRecorder(source, recordFile);
+    return source;
+  }
+
+  //-- Call once an event has been applied to the model.
+  void event(long time) {
+    latency.add(System.nanoTime() - time);
+  }
+
+  //-- Call once per frame, after drawing.
+  void frame() {
+    long now = System.nanoTime();
+    if (lastFrame > 0) frames.add(now - lastFrame);
+    lastFrame = now;
+  }
+
+  //-- True once a replay or simulation has run out and every event is applied.
+  boolean finished(EventQueue events, SerialReader reader) {
+    return reader.drained && events.size() == 0;
+  }
+
+  String[] report(String stages) {
+    String[] s = {
+      "Cubecube benchmark - " + (replayFile != null ? replayFile + " at " + speed + "x" :
+        scenario != null ? scenario + " at " + rate + "/s, seed " + seed : "serial") +
+        ", " + rows + "x" + columns,
+      "elapsed: " + nf((System.nanoTime() - started) / 1e9f, 1, 2) + " s, " + frameCount + " frames",
+      stages,
+      latency.report(),
+      frames.report()
+    };
+    for (int i = 0; i < s.length; i++) println(s[i]);
+    if (reportFile != null) saveStrings(reportFile, s);
+    return s;
+  }
+}
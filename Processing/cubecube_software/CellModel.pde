@@ -0,0 +1,151 @@
+// Cell-indexed model for the Cubecube board.
+//
+// Every block on the board owns a fixed-size slot in the UGeometry: slot k
+// covers faces [k*facesPerBlock, (k+1)*facesPerBlock) and the matching range
+// of vertices. Adding a block appends one slot, lifting a block moves the
+// last slot into the hole it leaves behind, so both cost the same no matter
+// how tall the board is.
+
+class CellModel {
+  UGeometry geo;
+
+  int rows, columns;
+  float size, offset;
+  float originX, originY;
+
+  // How many blocks are stacked in each location
+  int[][] height;
+
+  // slot[row][column][level] -> slot index of that block
+  int[][][] slot;
+  // reverse lookup, slot index -> (row, column, level)
+  int[] slotRow, slotColumn, slotLevel;
+  int slotNum;
+
+  // Faces of a single block at the origin, three vertices per face
+  UVec3[][] template;
+  int facesPerBlock, vertsPerBlock;
+
+  private UVec3[] tmp;
+
+  CellModel(int rows, int columns, float size, float offset) {
+    this.rows = rows;
+    this.columns = columns;
+    this.size = size;
+    this.offset = offset;
+
+    originX = -((rows * size) + (rows * offset)) / 2;
+    originY = -((columns * size) + (columns * offset)) / 2;
+
+    // Drawn in immediate mode. A retained shape would be rebuilt whole on
+    // every add or remove, making each edit cost as much as the model.
+    geo = new UGeometry();
+    height = new int[rows][columns];
+    slot = new int[rows][columns][];
+    for (int i = 0; i < rows; i++) {
+      for (int j = 0; j < columns; j++) {
+        slot[i][j] = new int[4];
+      }
+    }
+
+    slotRow = new int[100];
+    slotColumn = new int[100];
+    slotLevel = new int[100];
+
+    // Not sure why this is, but the size seems to need to be halved
+    UGeometry box = UPrimitive.box(size/2, size/2, size/2);
+    facesPerBlock = box.faceNum;
+    vertsPerBlock = facesPerBlock * 3;
+    template = new UVec3[facesPerBlock][];
+    for (int i = 0; i < facesPerBlock; i++) {
+      template[i] = UVec3.copyVertices(box.face[i].getVertices());
+    }
+
+    tmp = UVec3.getVec3(3);
+  }
+
+  //-- Stacks one block on top of (row, column).
+  void add(int row, int column) {
+    int level = height[row][column]++;
+    if (slot[row][column].length == level) {
+      slot[row][column] = UUtil.expandArray(slot[row][column]);
+    }
+    if (slotRow.length == slotNum) {
+      slotRow = UUtil.expandArray(slotRow);
+      slotColumn = UUtil.expandArray(slotColumn);
+      slotLevel = UUtil.expandArray(slotLevel);
+    }
+
+    int k = slotNum++;
+    slot[row][column][level] = k;
+    slotRow[k] = row;
+    slotColumn[k] = column;
+    slotLevel[k] = level;
+
+    float x = column * (size + offset) + originX;
+    float y = row * (size + offset) + originY;
+    float z = level * size;
+
+    for (int i = 0; i < facesPerBlock; i++) {
+      for (int j = 0; j < 3; j++) {
+        tmp[j].set(template[i][j]).add(x, y, z);
+      }
+      geo.addFace(tmp);
+    }
+  }
+
+  //-- Lifts up to count blocks off (row, column).
+  void remove(int row, int column, int count) {
+    for (int c = 0; c < count && height[row][column] > 0; c++) {
+      int level = --height[row][column];
+      int k = slot[row][column][level];
+      int last = --slotNum;
+
+      if (k != last) moveSlot(last, k);
+
+      geo.faceNum -= facesPerBlock;
+      geo.vert.n -= vertsPerBlock;
+      // vertex IDs were rewritten, incremental indexes must rebuild
+      geo.topologyChanged();
+    }
+  }
+
+  //-- Lifts every block off the board.
+  void reset() {
+    for (int i = 0; i < rows; i++) {
+      for (int j = 0; j < columns; j++) {
+        height[i][j] = 0;
+      }
+    }
+    slotNum = 0;
+    geo.reset();
+  }
+
+  // Moves the faces and vertices of slot src into slot dst. The UFace and
+  // UVec3 instances are reused, only the vertex IDs need to be shifted.
+  private void moveSlot(int src, int dst) {
+    int fsrc = src * facesPerBlock, fdst = dst * facesPerBlock;
+    int vsrc = src * vertsPerBlock, vdst = dst * vertsPerBlock;
+    int shift = vsrc - vdst;
+
+    UVec3[] v = geo.vert.v;
+    for (int i = 0; i < vertsPerBlock; i++) {
+      v[vdst + i] = v[vsrc + i];
+    }
+
+    UFace[] f = geo.face;
+    for (int i = 0; i < facesPerBlock; i++) {
+      UFace ff = f[fsrc + i];
+      ff.vid[0] -= shift;
+      ff.vid[1] -= shift;
+      ff.vid[2] -= shift;
+      f[fdst + i] = ff;
+    }
+
+    int row = slotRow[src], column = slotColumn[src], level = slotLevel[src];
+    slot[row][column][level] = dst;
+    slotRow[dst] = row;
+    slotColumn[dst] = column;
+    slotLevel[dst] = level;
+  }
+}
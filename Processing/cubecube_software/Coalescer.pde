@@ -0,0 +1,90 @@
+// Sums up board events per cell before they reach the model.
+//
+// A block wobbling on its contacts makes the firmware send -1(r,c) then
+// 1(r,c), and every one of those used to lift or stack faces in the model.
+// Here deltas for a cell are added up and only applied once the cell has
+// been quiet for the settle time, so a flicker ends up as one update, or
+// none at all if it cancels out. With a settle time of 0 deltas are still
+// summed over everything that arrived in the same frame.
+
+class Coalescer {
+  int rows, columns;
+  // How long a cell has to be quiet before its change is applied, in ms
+  float settle;
+
+  int[] pending;
+  // When the oldest and newest pending event for a cell came in
+  long[] first, last;
+
+  // Cells with pending events, in the order they first changed
+  int[] dirty;
+  int dirtyNum;
+  private boolean[] isDirty;
+
+  long events, updates, cancelled;
+
+  Coalescer(int rows, int columns, float settle) {
+    this.rows = rows;
+    this.columns = columns;
+    this.settle = settle;
+
+    int n = rows * columns;
+    pending = new int[n];
+    first = new long[n];
+    last = new long[n];
+    dirty = new int[n];
+    isDirty = new boolean[n];
+  }
+
+  void add(int delta, int row, int col, long time) {
+    int cell = row * columns + col;
+    events++;
+
+    if (!isDirty[cell]) {
+      isDirty[cell] = true;
+      dirty[dirtyNum++] = cell;
+      first[cell] = time;
+    }
+    pending[cell] += delta;
+    last[cell] = time;
+  }
+
+  //-- Applies every cell that has settled, calling applyDelta() once per cell.
+  // Cells whose deltas cancelled out are dropped without touching the model.
+  void commit(long now) {
+    long wait = (long) (settle * 1000000);
+    int kept = 0;
+
+    for (int i = 0; i < dirtyNum; i++) {
+      int cell = dirty[i];
+      int delta = pending[cell];
+
+      if (delta != 0 && now - last[cell] < wait) {
+        dirty[kept++] = cell;
+        continue;
+      }
+
+      isDirty[cell] = false;
+      pending[cell] = 0;
+      if (delta == 0) {
+        cancelled++;
+        continue;
+      }
+
+      updates++;
+      applyDelta(delta, cell / columns, cell % columns);
+      bench.event(first[cell]);
+    }
+    dirtyNum = kept;
+  }
+
+  //-- True if no cell is waiting to settle.
+  boolean empty() {
+    return dirtyNum == 0;
+  }
+
+  String report() {
+    return "coalescing: " + events + " events, " + updates + " model updates, " +
+      cancelled + " cancelled out, settle " + settle + " ms";
+  }
+}
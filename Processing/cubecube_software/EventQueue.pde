@@ -0,0 +1,67 @@
+import java.util.concurrent.atomic.*;
+
+// Bounded single-producer / single-consumer queue of board events.
+//
+// The serial reader thread offers events, draw() polls them. Events are
+// stored as primitives in parallel ring buffers, so nothing is allocated
+// per event and neither side ever takes a lock: each side only writes its
+// own counter and publishes it with lazySet().
+
+class CubeEvent {
+  int delta, row, column;
+  // System.nanoTime() when the event came off the wire
+  long time;
+}
+
+class EventQueue {
+  final int capacity, mask;
+  final int[] delta, row, column;
+  final long[] time;
+
+  // head is only written by the consumer, tail only by the producer
+  final AtomicLong head = new AtomicLong(), tail = new AtomicLong();
+
+  //-- Capacity is rounded up to the next power of two.
+  EventQueue(int size) {
+    int cap = 1;
+    while (cap < size) cap <<= 1;
+    capacity = cap;
+    mask = cap - 1;
+    delta = new int[cap];
+    row = new int[cap];
+    column = new int[cap];
+    time = new long[cap];
+  }
+
+  //-- Producer side. Returns false if the queue is full.
+  boolean offer(int d, int r, int c, long t) {
+    long tl = tail.get();
+    if (tl - head.get() >= capacity) return false;
+
+    int i = (int) (tl & mask);
+    delta[i] = d;
+    row[i] = r;
+    column[i] = c;
+    time[i] = t;
+    tail.lazySet(tl + 1);
+    return true;
+  }
+
+  //-- Consumer side. Copies the oldest event into e, returns false if empty.
+  boolean poll(CubeEvent e) {
+    long hd = head.get();
+    if (hd == tail.get()) return false;
+
+    int i = (int) (hd & mask);
+    e.delta = delta[i];
+    e.row = row[i];
+    e.column = column[i];
+    e.time = time[i];
+    head.lazySet(hd + 1);
+    return true;
+  }
+
+  int size() {
+    return (int) (tail.get() - head.get());
+  }
+}
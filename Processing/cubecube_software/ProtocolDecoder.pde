@@ -0,0 +1,99 @@
+// Streaming decoder for the board's serial protocol.
+//
+// The firmware prints one message per changed cell, back to back with no
+// separators:  <delta>(<row>,<col>)  e.g. "2(3,5)-1(0,7)".
+// Bytes are fed in one at a time, in whatever chunks the port delivers, and
+// each complete message is written into the same CubeEvent. Nothing is
+// allocated while decoding. Anything that doesn't fit the format drops the
+// message in progress and the decoder waits for the next delta.
+
+class ProtocolDecoder {
+  static final int START = 0, DELTA = 1, ROW = 2, COLUMN = 3;
+  // Longest number we accept, anything longer is line noise
+  static final int MAX_DIGITS = 6;
+
+  CubeEvent event = new CubeEvent();
+
+  int state = START;
+  private int value, digits, delta, row;
+  private boolean negative;
+
+  //-- Feeds one byte. Returns true when it completes a message, which is
+  // then available in event until the next call.
+  boolean feed(int b) {
+    switch (state) {
+    case START:
+      begin(b);
+      return false;
+
+    case DELTA:
+      if (digit(b)) return false;
+      if (b == '(' && digits > 0) {
+        delta = negative ? -value : value;
+        next(ROW);
+      }
+      else begin(b);
+      return false;
+
+    case ROW:
+      if (digit(b)) return false;
+      if (b == ',' && digits > 0) {
+        row = value;
+        next(COLUMN);
+      }
+      else begin(b);
+      return false;
+
+    case COLUMN:
+      if (digit(b)) return false;
+      if (b == ')' && digits > 0) {
+        event.delta = delta;
+        event.row = row;
+        event.column = value;
+        state = START;
+        return true;
+      }
+      begin(b);
+      return false;
+    }
+    return false;
+  }
+
+  //-- Feeds n bytes from buf, calling back into the reader for every
+  // complete message.
+  void feed(byte[] buf, int n, SerialReader reader, long time) {
+    for (int i = 0; i < n; i++) {
+      if (feed(buf[i] & 0xff)) {
+        reader.enqueue(event.delta, event.row, event.column, time);
+      }
+    }
+  }
+
+  void reset() {
+    state = START;
+  }
+
+  // Starts a new message if b can open one, otherwise waits in START
+  private void begin(int b) {
+    negative = (b == '-');
+    next(DELTA);
+    if (negative || b == '+') return;
+    if (!digit(b)) state = START;
+  }
+
+  private void next(int s) {
+    state = s;
+    value = 0;
+    digits = 0;
+  }
+
+  private boolean digit(int b) {
+    if (b < '0' || b > '9') return false;
+    if (++digits > MAX_DIGITS) {
+      state = START;
+      return true;
+    }
+    value = value * 10 + (b - '0');
+    return true;
+  }
+}
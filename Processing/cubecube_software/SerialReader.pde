@@ -0,0 +1,70 @@
+// Reads "delta(row,col)" messages from the board on a background thread
+// and hands them to draw() through an EventQueue. This way a burst of
+// deltas from the firmware is picked up as soon as it arrives, instead of
+// one message per frame. Raw bytes go straight into a ProtocolDecoder, so
+// reading allocates nothing per message. The bytes come from a ByteSource,
+// which is normally the board but can also be a recorded trace.
+
+class SerialReader implements Runnable {
+  ByteSource source;
+  EventQueue queue;
+  ProtocolDecoder decoder = new ProtocolDecoder();
+  int rows, columns;
+
+  byte[] buf = new byte[256];
+
+  volatile boolean running;
+  // Set once the source is done and every byte it handed over has been
+  // decoded and queued. done() can turn true during the read that returns
+  // the last bytes, so only an empty read started after done() counts.
+  volatile boolean drained;
+  Thread thread;
+
+  SerialReader(ByteSource source, EventQueue queue, int rows, int columns) {
+    this.source = source;
+    this.queue = queue;
+    this.rows = rows;
+    this.columns = columns;
+  }
+
+  void start() {
+    running = true;
+    thread = new Thread(this, "Cubecube serial reader");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void stop() {
+    running = false;
+    source.stop();
+  }
+
+  public void run() {
+    while (running) {
+      boolean wasDone = source.done();
+      int n = source.read(buf);
+
+      if (n > 0) decoder.feed(buf, n, this, System.nanoTime());
+      else {
+        if (wasDone) drained = true;
+        pause();
+      }
+    }
+  }
+
+  // Drops events outside the board, then waits for room in the queue
+  // rather than losing a delta.
+  void enqueue(int delta, int row, int col, long time) {
+    if (delta == 0 || row < 0 || row >= rows || col < 0 || col >= columns) return;
+    while (running && !queue.offer(delta, row, col, time)) pause();
+  }
+
+  void pause() {
+    try {
+      Thread.sleep(1);
+    }
+    catch (InterruptedException e) {
+      running = false;
+    }
+  }
+}
@@ -0,0 +1,136 @@
+// A fake board for load testing. Writes the same "delta(row,col)" bytes the
+// firmware does, at a set rate and on a board of any size, so the pipeline
+// can be pushed well past what someone stacking blocks by hand can do.
+//
+// Scenarios:
+//   build    blocks are stacked and lifted on random cells, keeping the
+//            board around half full
+//   flicker  every cell gets a block, then every cell flickers at once,
+//            -1 then 1, like blocks wobbling on their contacts
+//   ramp     stacks a block on every cell in turn up to maxHeight, then
+//            lifts them all again, over and over
+//
+// The same seed always gives the same stream.
+
+class SimulatedBoard implements ByteSource {
+  static final int BUILD = 0, FLICKER = 1, RAMP = 2;
+  // Longest message we write, "-999999(999999,999999)"
+  static final int MAX_MESSAGE = 22;
+
+  int scenario;
+  int rows, columns;
+  int maxHeight = 12;
+  // Events per second, 0 or less writes as fast as they're read
+  float rate;
+  // Stops after this many events, 0 or less never stops
+  long limit;
+
+  int[][] height;
+  int blocks;
+  long sent;
+
+  private java.util.Random random;
+  private long start = -1;
+  private int step;
+  private boolean stopped;
+
+  SimulatedBoard(String scenario, int rows, int columns, float rate, long seed, long limit) {
+    this.scenario = scenarioID(scenario);
+    this.rows = rows;
+    this.columns = columns;
+    this.rate = rate;
+    this.limit = limit;
+    height = new int[rows][columns];
+    random = new java.util.Random(seed);
+  }
+
+  int scenarioID(String name) {
+    if (name.equals("flicker")) return FLICKER;
+    if (name.equals("ramp")) return RAMP;
+    return BUILD;
+  }
+
+  public int read(byte[] buf) {
+    long now = System.nanoTime();
+    if (start < 0) start = now;
+
+    long due = limit > 0 ? limit : Long.MAX_VALUE;
+    if (rate > 0) due = Math.min(due, (long) ((now - start) / 1e9 * rate) + 1);
+
+    int n = 0;
+    while (!stopped && sent < due && n + MAX_MESSAGE <= buf.length) {
+      n = next(buf, n);
+      sent++;
+    }
+    return n;
+  }
+
+  public boolean done() {
+    return stopped || (limit > 0 && sent >= limit);
+  }
+
+  public void stop() {
+    stopped = true;
+  }
+
+  //-- Writes the next event for the scenario into buf at n.
+  private int next(byte[] buf, int n) {
+    int cells = rows * columns;
+
+    if (scenario == FLICKER) {
+      // One pass putting a block on every cell, then -1/1 pairs forever
+      int i = step;
+      step = (i + 1 < cells * 3) ? i + 1 : cells;
+      if (i < cells) return message(buf, n, 1, i / columns, i % columns);
+      i -= cells;
+      int cell = i / 2;
+      return message(buf, n, (i % 2 == 0) ? -1 : 1, cell / columns, cell % columns);
+    }
+
+    if (scenario == RAMP) {
+      // maxHeight passes up, then maxHeight passes down
+      int pass = step / cells;
+      int cell = step % cells;
+      step = (step + 1) % (cells * maxHeight * 2);
+      return message(buf, n, pass < maxHeight ? 1 : -1, cell / columns, cell % columns);
+    }
+
+    int row = random.nextInt(rows);
+    int col = random.nextInt(columns);
+    int h = height[row][col];
+    boolean building = (blocks < cells * maxHeight / 2);
+    int delta;
+    if (h == 0 || (h < maxHeight && random.nextFloat() < (building ? 0.8f : 0.2f))) {
+      delta = 1 + random.nextInt(min(3, maxHeight - h));
+    }
+    else delta = -(1 + random.nextInt(h));
+    height[row][col] = h + delta;
+    blocks += delta;
+    return message(buf, n, delta, row, col);
+  }
+
+  private int message(byte[] buf, int n, int delta, int row, int col) {
+    if (delta < 0) {
+      buf[n++] = '-';
+      delta = -delta;
+    }
+    n = number(buf, n, delta);
+    buf[n++] = '(';
+    n = number(buf, n, row);
+    buf[n++] = ',';
+    n = number(buf, n, col);
+    buf[n++] = ')';
+    return n;
+  }
+
+  // Writes v as decimal digits without going through a String
+  private int number(byte[] buf, int n, int v) {
+    int digits = 1;
+    for (int d = v; d >= 10; d /= 10) digits++;
+    for (int i = digits - 1; i >= 0; i--) {
+      buf[n + i] = (byte) ('0' + v % 10);
+      v /= 10;
+    }
+    return n + digits;
+  }
+}
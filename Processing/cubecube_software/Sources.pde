@@ -0,0 +1,163 @@
+// Where the SerialReader gets its bytes from. The board over a serial port
+// is one source, a recorded trace is another, so the whole pipeline can be
+// run and timed without hardware.
+
+interface ByteSource {
+  //-- Copies whatever bytes are ready into buf without blocking.
+  // Returns the number of bytes copied, 0 if there are none.
+  int read(byte[] buf);
+
+  //-- True once the source will never have any more bytes.
+  boolean done();
+
+  void stop();
+}
+
+//-- The board, over a Processing serial port.
+class SerialSource implements ByteSource {
+  Serial port;
+
+  SerialSource(Serial port) {
+    this.port = port;
+  }
+
+  public int read(byte[] buf) {
+    if (port.available() == 0) return 0;
+    return port.readBytes(buf);
+  }
+
+  public boolean done() {
+    return false;
+  }
+
+  public void stop() {
+    port.stop();
+  }
+}
+
+// Trace files hold one chunk of raw bytes per line, exactly as it was read
+// from the port, prefixed by the time it arrived in microseconds:
+//
+//   <micros><TAB><bytes>
+//
+// Backslashes and non-printable bytes are written as \xHH.
+
+//-- Passes bytes through from another source, writing each chunk to a trace.
+class TraceRecorder implements ByteSource {
+  ByteSource source;
+  PrintWriter out;
+  long start = -1;
+  StringBuilder line = new StringBuilder();
+
+  TraceRecorder(ByteSource source, String filename) {
+    this.source = source;
+    out = createWriter(filename);
+    out.println("# Cubecube serial trace");
+  }
+
+  public int read(byte[] buf) {
+    int n = source.read(buf);
+    if (n <= 0) return n;
+
+    long now = System.nanoTime();
+    if (start < 0) start = now;
+
+    line.setLength(0);
+    line.append((now - start) / 1000).append('\t');
+    for (int i = 0; i < n; i++) {
+      int b = buf[i] & 0xff;
+      if (b < 32 || b > 126 || b == '\\') {
+        line.append("\\x").append(hex(b, 2));
+      }
+      else line.append((char) b);
+    }
+    out.println(line);
+    out.flush();
+
+    return n;
+  }
+
+  public boolean done() {
+    return source.done();
+  }
+
+  public void stop() {
+    source.stop();
+    out.flush();
+    out.close();
+  }
+}
+
+//-- Plays back a trace, at real time or speed times faster.
+// A speed of 0 or less hands over the whole trace as fast as it is read.
+class TraceReplaySource implements ByteSource {
+  long[] time;
+  byte[][] chunk;
+  int chunkNum;
+  float speed;
+
+  private int next, pos;
+  private long start = -1;
+
+  TraceReplaySource(String filename, float speed) {
+    this.speed = speed;
+
+    String[] lines = loadStrings(filename);
+    time = new long[lines.length];
+    chunk = new byte[lines.length][];
+
+    for (int i = 0; i < lines.length; i++) {
+      String s = lines[i];
+      int tab = s.indexOf('\t');
+      if (s.startsWith("#") || tab < 0) continue;
+
+      time[chunkNum] = Long.parseLong(s.substring(0, tab));
+      chunk[chunkNum++] = unescape(s, tab + 1);
+    }
+  }
+
+  public int read(byte[] buf) {
+    long now = System.nanoTime();
+    if (start < 0) start = now;
+    long elapsed = (long) ((now - start) / 1000 * (double) speed);
+
+    int n = 0;
+    while (next < chunkNum && n < buf.length) {
+      if (speed > 0 && time[next] - time[0] > elapsed) break;
+
+      byte[] c = chunk[next];
+      int len = min(c.length - pos, buf.length - n);
+      System.arraycopy(c, pos, buf, n, len);
+      n += len;
+      pos += len;
+      if (pos == c.length) {
+        next++;
+        pos = 0;
+      }
+    }
+    return n;
+  }
+
+  //-- True once every chunk in the trace has been handed out.
+  public boolean done() {
+    return next == chunkNum;
+  }
+
+  public void stop() {
+    next = chunkNum;
+  }
+
+  private byte[] unescape(String s, int from) {
+    byte[] b = new byte[s.length() - from];
+    int n = 0;
+    for (int i = from; i < s.length(); i++) {
+      char ch = s.charAt(i);
+      if (ch == '\\' && i + 3 < s.length() && s.charAt(i + 1) == 'x') {
+        b[n++] = (byte) unhex(s.substring(i + 2, i + 4));
+        i += 3;
+      }
+      else b[n++] = (byte) ch;
+    }
+    return subset(b, 0, n);
+  }
+}
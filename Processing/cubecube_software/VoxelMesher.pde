@@ -0,0 +1,154 @@
+// Greedy voxel mesher.
+//
+// Builds a UGeometry containing only the exposed faces of a voxel grid.
+// Faces between two solid voxels are dropped, and coplanar faces facing
+// the same way are merged into the largest rectangles that fit, so the
+// size of the mesh follows the surface area of the shape rather than the
+// number of blocks in it. See Mikola Lysenko, "Meshing in a Minecraft Game".
+
+class VoxelMesher {
+  float size;
+  // Center of voxel (0,0,0)
+  float originX, originY, originZ;
+
+  private int[] mask = new int[0];
+  private UVec3[] quad = UVec3.getVec3(4);
+
+  VoxelMesher(float size, float originX, float originY, float originZ) {
+    this.size = size;
+    this.originX = originX;
+    this.originY = originY;
+    this.originZ = originZ;
+  }
+
+  //-- Meshes a height grid as used by the board, heights[row][column].
+  // Columns run along X, rows along Y and levels along Z.
+  UGeometry build(int[][] heights) {
+    int rows = heights.length, columns = heights[0].length, levels = 0;
+    for (int i = 0; i < rows; i++) {
+      for (int j = 0; j < columns; j++) {
+        levels = max(levels, heights[i][j]);
+      }
+    }
+
+    boolean[][][] solid = new boolean[columns][rows][levels];
+    for (int i = 0; i < rows; i++) {
+      for (int j = 0; j < columns; j++) {
+        for (int k = 0; k < heights[i][j]; k++) {
+          solid[j][i][k] = true;
+        }
+      }
+    }
+
+    return build(solid);
+  }
+
+  //-- Meshes a voxel grid indexed as solid[x][y][z].
+  UGeometry build(boolean[][][] solid) {
+    UGeometry geo = new UGeometry();
+    if (solid.length == 0 || solid[0].length == 0 || solid[0][0].length == 0) return geo;
+
+    int[] dims = { solid.length, solid[0].length, solid[0][0].length };
+    int[] x = new int[3];
+    int[] q = new int[3];
+
+    // Sweep each axis d, with u and v spanning the slice
+    for (int d = 0; d < 3; d++) {
+      int u = (d + 1) % 3, v = (d + 2) % 3;
+      int du = dims[u], dv = dims[v];
+      if (mask.length < du * dv) mask = new int[du * dv];
+
+      q[0] = q[1] = q[2] = 0;
+      q[d] = 1;
+
+      // Slice s is the plane between voxel s-1 and voxel s along d
+      for (int s = 0; s <= dims[d]; s++) {
+        int n = 0;
+        for (x[v] = 0; x[v] < dv; x[v]++) {
+          for (x[u] = 0; x[u] < du; x[u]++) {
+            x[d] = s - 1;
+            boolean a = s > 0 && solid[x[0]][x[1]][x[2]];
+            x[d] = s;
+            boolean b = s < dims[d] && solid[x[0]][x[1]][x[2]];
+            // +1 faces point along +d, -1 faces along -d
+            mask[n++] = (a == b) ? 0 : (a ? 1 : -1);
+          }
+        }
+
+        // Grow rectangles of identical mask values, left to right then down
+        n = 0;
+        for (int j = 0; j < dv; j++) {
+          for (int i = 0; i < du; ) {
+            int c = mask[n];
+            if (c == 0) {
+              i++;
+              n++;
+              continue;
+            }
+
+            int w = 1;
+            while (i + w < du && mask[n + w] == c) w++;
+
+            int h = 1;
+            boolean done = false;
+            while (j + h < dv && !done) {
+              for (int k = 0; k < w; k++) {
+                if (mask[n + k + h * du] != c) {
+                  done = true;
+                  break;
+                }
+              }
+              if (!done) h++;
+            }
+
+            x[d] = s;
+            x[u] = i;
+            x[v] = j;
+            addQuad(geo, x, d, u, v, w, h, c > 0);
+
+            for (int l = 0; l < h; l++) {
+              for (int k = 0; k < w; k++) {
+                mask[n + k + l * du] = 0;
+              }
+            }
+            i += w;
+            n += w;
+          }
+        }
+      }
+    }
+
+    return geo;
+  }
+
+  // Adds a w x h rectangle with its corner at grid position p, lying in the
+  // plane normal to axis d. Vertices are given in QUAD_STRIP order (bottom
+  // left, top left, bottom right, top right) so the face normal points out.
+  private void addQuad(UGeometry geo, int[] p, int d, int u, int v, int w, int h, boolean positive) {
+    float[] c0 = toWorld(p[0], p[1], p[2]);
+    float[] eu = new float[3], ev = new float[3];
+    eu[u] = w * size;
+    ev[v] = h * size;
+
+    // u x v points along +d, so swap the edges for faces pointing along -d
+    float[] right = positive ? eu : ev;
+    float[] up = positive ? ev : eu;
+
+    quad[0].set(c0[0], c0[1], c0[2]);
+    quad[1].set(c0[0] + up[0], c0[1] + up[1], c0[2] + up[2]);
+    quad[2].set(c0[0] + right[0], c0[1] + right[1], c0[2] + right[2]);
+    quad[3].set(c0[0] + right[0] + up[0], c0[1] + right[1] + up[1], c0[2] + right[2] + up[2]);
+
+    geo.addFace(quad);
+  }
+
+  // Converts a grid corner to model coordinates
+  private float[] toWorld(int gx, int gy, int gz) {
+    float half = size / 2;
+    return new float[] {
+      originX + gx * size - half,
+      originY + gy * size - half,
+      originZ + gz * size - half
+    };
+  }
+}
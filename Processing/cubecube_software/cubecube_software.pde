@@ -7,6 +7,7 @@
 //model will save to the sketch folder (Sketch>Show Sketch Folder)
 
 import processing.serial.*;
+import java.util.concurrent.Future;
 
 import unlekker.util.*;
 import unlekker.modelbuilder.*;
@@ -37,8 +38,27 @@ int totalPrims = 0;
 // How many "prims" we have stacked in each location
 int[][] prims;
 
-Serial myPort;
-String serial_buffer = null;
+// Keeps track of which faces in the model belong to which block
+CellModel cells;
+
+// Builds a model with only the outside faces of the stacked blocks.
+// Used for export, and for display when showMerged is set (press 'm').
+// Assumes primOffset == 0, i.e. blocks touching their neighbours.
+VoxelMesher mesher;
+UGeometry merged;
+boolean showMerged = false;
+
+// Serial input is parsed on its own thread and queued up for draw()
+SerialReader reader;
+EventQueue events;
+CubeEvent event = new CubeEvent();
+
+// Sums up deltas per cell so flickering blocks don't churn the model
+Coalescer coalescer;
+
+// Picks the serial port or a recorded trace, and times the pipeline.
+// See the Benchmark tab for the sketch arguments.
+Benchmark bench;
 
 public void setup() {
   size(900, 900, P3D);
@@ -49,52 +69,39 @@ public void setup() {
   nav.setRotation(.75,0,-.35);
   
   noStroke();
-  model = new UGeometry();
   
-  // Allocate the 2D array
-  prims = new int[numRows][numColumns];
-
-  // Two nested loops allow us to visit every spot in a 2D array.   
-  // For every column I, visit every row J.
-  // This initializes the array to zero, not necessary but shows 2D array traversal
-  for (int i = 0; i < numRows; i++) {
-      for (int j = 0; j < numColumns; j++) {
-          prims[i][j] = 0;
-      }
-  }
+  // The benchmark arguments can change the board size
+  bench = new Benchmark(args);
+  numRows = bench.rows;
+  numColumns = bench.columns;
+  boardXSize = (numRows * primSize) + (numRows * primOffset);
+  boardYSize = (numColumns * primSize) + (numColumns * primOffset);
   
-  println(Serial.list());
+  cells = new CellModel(numRows, numColumns, primSize, primOffset);
+  model = cells.geo;
   
-  String portName = Serial.list()[serialPort];
-  myPort = new Serial(this, portName, 9600);
-  myPort.clear();
+  // The cell model owns the 2D array of stack heights
+  prims = cells.height;
+  
+  mesher = new VoxelMesher(primSize, cells.originX, cells.originY, 0);
+  
+  coalescer = new Coalescer(numRows, numColumns, bench.settle);
+  
+  events = new EventQueue(1024);
+  reader = new SerialReader(bench.open(serialPort), events, numRows, numColumns);
+  reader.start();
 }
 
 public void draw() {
   
 
   
-  if (myPort.available() >= 4) {
-    serial_buffer = myPort.readStringUntil((int) ')');
-    //println(serial_buffer);
-    if (serial_buffer != null) {
-      String addsub = serial_buffer.substring(0, serial_buffer.indexOf('('));
-      String row = serial_buffer.substring(serial_buffer.indexOf('(') + 1, serial_buffer.indexOf(','));
-      String col = serial_buffer.substring(serial_buffer.indexOf(',') + 1, serial_buffer.indexOf(')'));
-      println("Adding " + addsub + " blocks to row" + row + ", column" + col);
-      int i_addsub = int(addsub);
-      int i_row = int(row);
-      int i_col = int(col);
-      if (i_addsub > 0) {
-        for (int k = 0; k < i_addsub; ++k) {
-          addPrim(i_row, i_col);
-        }
-      }
-      else {
-        removePrims(i_row, i_col, -i_addsub);
-      }
-    }
+  // Collect every event that arrived since the last frame, then apply
+  // the cells that have settled
+  while (events.poll(event)) {
+    coalescer.add(event.delta, event.row, event.column, event.time);
   }
+  coalescer.commit(System.nanoTime());
   
     background(0);
 
@@ -103,15 +110,39 @@ public void draw() {
   fill(255,100,50);
   lights();
   pointLight(100, 100, 100, width/2, height/2, 50);  //uncomment to 'aim' the light source
-  model.draw(this);
+  if (showMerged) getMerged().draw(this);
+  else model.draw(this);
+  
+  bench.frame();
+  if (bench.finished(events, reader) && coalescer.empty()) {
+    bench.report(coalescer.report());
+    exit();
+  }
 }
 
+// STL export in progress, see keyPressed()
+Future<File> export;
+
+// called on the export thread, so only prints
+USTLWriter.Listener exportListener = new USTLWriter.Listener() {
+  public void exportDone(File file, long faceNum) {
+    println("Saved " + file.getName() + ", " + faceNum + " triangles.");
+  }
+
+  public void exportFailed(File file, Exception e) {
+    println("Could not save " + file.getName() + ": " + e);
+  }
+};
+
 public void keyPressed() {
   //-- save model as an STL
   if( key == ' ' ) {
-    //  UGeometry gb = new
-     model.writeSTL(this, "output.stl");
-   }
+    // written on a background thread, the view keeps running meanwhile
+    if (export != null && !export.isDone()) println("Export still running.");
+    else export = getMerged().writeSTLAsync(this, "output.stl", exportListener);
+  }
+  
+  if( key == 'm' ) showMerged = !showMerged;
   
 
   
@@ -119,40 +150,37 @@ public void keyPressed() {
  
 }
 
+//-- Stacks delta blocks on (row, column), or lifts -delta blocks off it.
+public void applyDelta(int delta, int row, int column) {
+  if (delta > 0) {
+    for (int k = 0; k < delta; ++k) {
+      addPrim(row, column);
+    }
+  }
+  else {
+    removePrims(row, column, -delta);
+  }
+}
+
 //-- Adds a primitive to (row, column). 
 public void addPrim( int row, int column ) {
-  doAddPrim(row, column, prims[row][column]++);
+  cells.add(row, column);
   totalPrims++;
+  merged = null;
 }
 
-public void doAddPrim(int row, int column, int z)
-{
-  UGeometry g;
-  
-  // Not sure why this is, but the primSize seems to need to be halved
-  g = UPrimitive.box(primSize/2, primSize/2, primSize/2); 
-  
-  g.translate(new UVec3(column * (primSize+primOffset), row * (primSize+primOffset),z * primSize));
-  
-  // will center the "board"
-  g.translate(new UVec3(-boardXSize/2,-boardYSize/2,0));
-  
-  model.add(g);
-}
-
+//-- Removes count primitives from the top of (row, column).
+// Only the faces of the lifted blocks are touched, the rest of the model stays put.
 public void removePrims(int row, int column, int count)
 {
+  count = min(count, prims[row][column]);
   totalPrims -= count;
-  prims[row][column] -= count;
-  model.reset();
-  for (int i = 0; i < numRows; ++i) {
-    for (int j = 0; j < numColumns; ++j) {
-      for (int k = 0; k < prims[i][j]; ++k) {
-        doAddPrim(i, j, k);
-      }
-    }
-  }
+  cells.remove(row, column, count);
+  merged = null;
 }
-  
 
-
+//-- Returns the merged model, rebuilding it if the board has changed.
+public UGeometry getMerged() {
+  if (merged == null) merged = mesher.build(prims).useShapeCache();
+  return merged;
+}